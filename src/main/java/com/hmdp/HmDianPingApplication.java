@@ -4,11 +4,13 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @MapperScan("com.hmdp.mapper")
 @SpringBootApplication
 @EnableAspectJAutoProxy(exposeProxy = true) // 引入aspectjweaver依赖, 然后这里使用注解来暴露动态代理对象
+@EnableScheduling // 开启定时任务, 秒杀开始前的预热用到
 public class HmDianPingApplication {
 
     public static void main(String[] args) {
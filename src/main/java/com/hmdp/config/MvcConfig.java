@@ -2,6 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillRateLimitInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -13,6 +15,8 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // token刷新拦截器
@@ -29,5 +33,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);
+        // 秒杀下单限流拦截器, 放在登录拦截器后面, 未登录的请求不消耗令牌
+        registry.addInterceptor(new SeckillRateLimitInterceptor(seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/**").order(2);
             }
 }
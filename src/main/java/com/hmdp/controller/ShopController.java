@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -25,6 +26,8 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
 
     /**
      * 根据id查询商铺信息
@@ -48,6 +51,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 新店铺加进布隆过滤器, 否则查询时会被当成不存在
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
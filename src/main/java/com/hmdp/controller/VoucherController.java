@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -22,6 +23,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
 
     /**
      * 新增普通券
@@ -45,6 +48,35 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result replenishSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.replenishSeckillStock(voucherId, count);
+    }
+
+    /**
+     * 修改秒杀券下单接口的限流速率, 所有节点立即生效
+     * @param voucherId 优惠券id
+     * @param rate 每秒放行的请求数, 0代表不限流
+     * @param burst 令牌桶容量(允许的突发请求数), 0代表和速率相同
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/rate-limit")
+    public Result updateSeckillRateLimit(@PathVariable("id") Long voucherId,
+                                         @RequestParam("rate") Double rate,
+                                         @RequestParam(value = "burst", defaultValue = "0") Long burst) {
+        if (rate < 0 || burst < 0) {
+            return Result.fail("速率和容量不能为负数");
+        }
+        seckillRateLimiter.updateRule(voucherId, rate, burst);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -4,10 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.LocalLockRegistry;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderQueue;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -24,8 +27,86 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderQueue seckillOrderQueue;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private LocalLockRegistry localLockRegistry;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询当前用户的秒杀订单状态. 支持长轮询: 订单还在排队时最多挂起timeout秒, 状态一变化马上返回
+     * @param orderId 订单id
+     * @param timeout 最长等待秒数, 0代表立即返回, 最多30秒
+     * @return PENDING(排队中) / CREATED(下单成功) / FAILED(下单失败), 不是自己的订单返回订单不存在
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(
+            @PathVariable("id") Long orderId,
+            @RequestParam(value = "timeout", defaultValue = "0") Integer timeout) {
+        // 超时回调不在请求线程里执行, 先把用户id取出来
+        Long userId = UserHolder.getUser().getId();
+        long seconds = Math.min(Math.max(timeout, 0), 30);
+        DeferredResult<Result> result = new DeferredResult<>(seconds > 0 ? seconds * 1000 : null);
+        // 1.先查一次, 不是自己的订单、或者已经有结果了直接返回
+        Result status = voucherOrderService.queryOrderStatus(userId, orderId);
+        if (seconds == 0 || !SeckillOrderStatus.PENDING.equals(status.getData())) {
+            result.setResult(status);
+            return result;
+        }
+        // 2.自己的订单还在排队才登记长轮询. 登记后再查一次, 防止查完之后、登记之前状态刚好变化而错过通知
+        seckillOrderStatus.await(orderId, result);
+        // 超时了就返回当时的状态(还是PENDING), 客户端再发起下一轮
+        result.onTimeout(() -> result.setResult(voucherOrderService.queryOrderStatus(userId, orderId)));
+        status = voucherOrderService.queryOrderStatus(userId, orderId);
+        if (!SeckillOrderStatus.PENDING.equals(status.getData())) {
+            result.setResult(status);
+        }
+        return result;
+    }
+
+    /**
+     * 查询秒杀订单队列的监控指标
+     * @return 队列深度、批大小、提交耗时等
+     */
+    @GetMapping("queue/stats")
+    public Result queryQueueStats() {
+        return Result.ok(seckillOrderQueue.stats());
+    }
+
+    /**
+     * 查询本节点分布式锁的竞争情况
+     * @param top 返回竞争最多的前几个key
+     * @return 总的获取次数、本地竞争次数、Redis加锁次数, 以及竞争最多的key
+     */
+    @GetMapping("lock/stats")
+    public Result queryLockStats(@RequestParam(value = "top", defaultValue = "20") Integer top) {
+        return Result.ok(localLockRegistry.stats(top));
+    }
+
+    /**
+     * 查询本节点每个业务的id发号情况
+     * @return 每秒发号数, 以及当天还剩多少序列号
+     */
+    @GetMapping("id/stats")
+    public Result queryIdStats() {
+        return Result.ok(redisIdWorker.stats());
+    }
+
+    /**
+     * 解析订单id
+     * @param id 订单id
+     * @return 生成时间和序列号
+     */
+    @GetMapping("id/{id}")
+    public Result decodeId(@PathVariable("id") Long id) {
+        return Result.ok(RedisIdWorker.decode(id));
+    }
 }
@@ -0,0 +1,26 @@
+package com.hmdp.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+/**
+ * <p>
+ *  分布式锁在数据库一侧的fencing token, 每个锁一行, 记录写入过的最大token
+ * </p>
+ */
+public interface LockFenceMapper {
+
+    /**
+     * 锁第一次写入时建一行, 已经有了就忽略
+     * @param lockKey 锁的key
+     */
+    void insertIgnore(@Param("lockKey") String lockKey);
+
+    /**
+     * token不小于写入过的最大token时更新, 同时对这一行加行锁直到事务结束,
+     * 所以拿着旧token的写入要么在新token之前提交, 要么被拒绝
+     * @param lockKey 锁的key
+     * @param token 获取锁时拿到的fencing token
+     * @return 1代表token有效, 0代表已经有更大的token写入过
+     */
+    int advance(@Param("lockKey") String lockKey, @Param("token") long token);
+}
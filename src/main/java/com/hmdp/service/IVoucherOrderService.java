@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,16 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     Result createVoucherOrder(Long voucherId);
+
+    /**
+     * 持有分布式锁时下单, 在同一个事务里由数据库校验fencing token
+     * @param lockKey 锁的key, null代表不校验
+     * @param fencingToken 获取锁时拿到的fencing token
+     * @throws IllegalMonitorStateException 已经有更大的token写入过, 事务回滚
+     */
+    Result createVoucherOrder(Long voucherId, String lockKey, long fencingToken);
+
+    Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long userId, Long orderId);
 }
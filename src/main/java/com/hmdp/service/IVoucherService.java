@@ -17,4 +17,8 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result replenishSeckillStock(Long voucherId, Integer count);
+
+    void warmUpSeckillVoucher(Long voucherId);
 }
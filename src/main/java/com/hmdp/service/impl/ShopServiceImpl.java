@@ -10,10 +10,13 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ILock;
 import com.hmdp.utils.RedisData;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
@@ -236,10 +239,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
-        // 1. 更新数据库
+        // 1. 获取缓存重建的写锁, 等正在进行的重建完成, 并且更新期间不会有新的重建把旧数据写回缓存
+        ILock writeLock = cacheClient.rebuildLock(CACHE_SHOP_KEY + id).writeLock();
+        try {
+            if (!writeLock.tryLock(LOCK_SHOP_TTL, LOCK_SHOP_TTL, TimeUnit.SECONDS)) {
+                return Result.fail("店铺正在更新, 请稍后再试");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("店铺更新被中断");
+        }
+        // 事务结束(提交或回滚)后再释放写锁, 否则重建可能读到还没提交的旧数据
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                writeLock.unlock();
+            }
+        });
+        // 2. 更新数据库
         updateById(shop);
-        // 2. 删除缓存
-        stringRedisTemplate.delete("cache:shop:" + shop.getId());
+        // 3. 删除缓存, 并通知所有节点删除本地的一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
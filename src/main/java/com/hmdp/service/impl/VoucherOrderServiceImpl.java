@@ -3,20 +3,38 @@ package com.hmdp.service.impl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.LockFenceMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockManager;
+import com.hmdp.utils.SeckillVoucherCache;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.RedisReentrantLock;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.framework.AopContext;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -26,6 +44,7 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     // extends ServiceImpl：这是 MP 提供的基类。它像一个“万能工具箱”，里面塞满了 save、update、getById 等方法。
@@ -39,9 +58,90 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillVoucherCache seckillVoucherCache;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillStockManager seckillStockManager;
+    @Resource
+    private RedisLockFactory redisLockFactory;
+    @Resource
+    private LockFenceMapper lockFenceMapper;
+
+    /**
+     * 秒杀模式: true走Redis预扣库存+异步下单, false走原来的同步加锁下单
+     */
+    @Value("${hmdp.seckill.async:true}")
+    private boolean asyncSeckill;
+    /**
+     * 同步秒杀的一人一单策略: lock 用户锁+查询订单数; unique-index 依赖 (user_id, voucher_id) 唯一索引
+     */
+    @Value("${hmdp.seckill.one-per-user:lock}")
+    private String onePerUserStrategy;
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已经标记售罄, 直接在内存里拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足！");
+        }
+        if (!asyncSeckill) {
+            return seckillVoucherSync(voucherId);
+        }
+        // 1.查询秒杀券的时间窗口(进程内快照, 不查库也不访问Redis)
+        SeckillVoucherCache.Snapshot voucher = seckillVoucherCache.get(voucherId);
+        if (voucher == null) {
+            return Result.fail("优惠券不存在！");
+        }
+        long now = System.currentTimeMillis();
+        // 2.判断秒杀是否开始
+        if (voucher.notStarted(now)) {
+            return Result.fail("秒杀尚未开始！");
+        }
+        // 3.判断秒杀是否已经结束
+        if (voucher.ended(now)) {
+            return Result.fail("秒杀已经结束！");
+        }
+        // 4.先只读判断库存和一人一单, 售罄和重复下单的请求不领订单id, 不浪费当天的序列号
+        Long userId = UserHolder.getUser().getId();
+        int r = seckillStockManager.check(voucherId, userId);
+        if (r != SeckillStockManager.OK) {
+            return seckillFailed(voucherId, r);
+        }
+        // 5.执行lua脚本, 原子地判断库存和一人一单, 有资格就直接把订单发到消息队列(不查库, 只用Redis)
+        long orderId = redisIdWorker.nextId("order");
+        r = seckillStockManager.tryAcquire(voucherId, userId, orderId);
+        // 6.判断结果是否为0
+        if (r != SeckillStockManager.OK) {
+            // 6.1.不为0, 代表没有购买资格. 只有并发请求抢最后几件库存、或同一用户同时下单时才会走到这里, 浪费的id很少
+            return seckillFailed(voucherId, r);
+        }
+        // 6.2.为0, 订单已经进入Redis Stream, 由SeckillOrderQueue的消费者批量写库
+        // 7.直接返回订单id
+        return Result.ok(orderId);
+    }
+
+    private Result seckillFailed(Long voucherId, int r) {
+        switch (r) {
+            case SeckillStockManager.SOLD_OUT:
+                // 库存不足时标记售罄, 后面的请求就不用再来Redis了
+                soldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足！");
+            case SeckillStockManager.DUPLICATE:
+                return Result.fail("不能重复下单");
+            default:
+                // 库存还没写入Redis(还没预热), 不能标记售罄, 否则所有节点都会拒绝这张券. 等预热任务写入库存后重试
+                log.warn("秒杀券{}的库存还没有写入Redis", voucherId);
+                return Result.fail("秒杀尚未准备好, 请稍后重试");
+        }
+    }
+
+    /**
+     * 同步秒杀: 查库判断 + 用户锁 + 查库一人一单 + 扣库存 + 写订单, 都在请求线程里完成
+     */
+    private Result seckillVoucherSync(Long voucherId) {
         // 1.查询优惠券
         SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
 
@@ -58,22 +158,34 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 4.判断库存是否充足
         if (voucher.getStock() < 1) {
             // 库存不足
+            soldOutRegistry.markSoldOut(voucherId);
             return Result.fail("库存不足！");
         }
+        //获取代理对象(事务)
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        if (isUniqueIndexStrategy()) {
+            // 5.0. 唯一索引保证一人一单, 不需要加锁
+            return proxy.createVoucherOrder(voucherId);
+        }
         // 5.1. 一人一单(复制过来加锁用)
         Long userId = UserHolder.getUser().getId();
         // 创建锁对象
-        SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        // 获取锁
-        boolean isLock = lock.tryLock(1200); // 确定一个锁超时时间.跟业务执行时间有关.这里设1200是因为后面调试方便
+        // 同一个用户在本节点的并发请求先在本地竞争, 抢不到的直接失败, 不再访问Redis
+        String lockName = "order:" + userId;
+        ILock lock = redisLockFactory.getLock(lockName);
+        // 获取锁. 持有期间由看门狗续期, 超时时间只决定节点宕机后锁多久释放, 和业务执行时间无关
+        boolean isLock = lock.tryLock(10);
         //加锁失败
         if (!isLock) { // 正常逻辑总用嵌套不优雅容易出问题,所以使用反向判断
             return Result.fail("不允许重复下单");
         }
         try {
-            //获取代理对象(事务)
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createVoucherOrder(voucherId);
+            // 带上fencing token, 在同一个事务里由数据库校验锁是否还是自己的
+            return proxy.createVoucherOrder(voucherId, RedisReentrantLock.keyOf(lockName), lock.getFencingToken());
+        } catch (IllegalMonitorStateException e) {
+            // 锁已经过期, 别人带着更大的token写入过了, 事务已回滚
+            log.warn("用户{}的下单锁已失效, 订单回滚: {}", userId, e.getMessage());
+            return Result.fail("下单超时, 请重试");
         } finally {
             //释放锁
             lock.unlock();
@@ -82,8 +194,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     public Result createVoucherOrder(Long voucherId) {
+        return createVoucherOrder(voucherId, null, 0L);
+    }
+
+    @Override
+    @Transactional
+    public Result createVoucherOrder(Long voucherId, String lockKey, long fencingToken) {
+        // 5.0. 持有锁下单时, 在这个事务里先让数据库校验fencing token: 锁那一行记着写入过的最大token,
+        // 条件更新同时加上行锁直到提交. 线程在持锁期间停顿太久(比如GC)导致锁过期、别人带着更大的token写入过,
+        // 旧的持有者在这里就被拒绝; 别人还没写入时, 别人要等这个事务结束, 写入顺序和token顺序一致
+        if (lockKey != null) {
+            lockFenceMapper.insertIgnore(lockKey);
+            if (fencingToken <= 0 || lockFenceMapper.advance(lockKey, fencingToken) == 0) {
+                throw new IllegalMonitorStateException("fencing token " + fencingToken + " 已失效");
+            }
+        }
         // 5.1. 一人一单
         Long userId = UserHolder.getUser().getId(); // 使用登录拦截器取用户id
+        if (isUniqueIndexStrategy()) {
+            return createVoucherOrderWithUniqueIndex(userId, voucherId);
+        }
         // 5.1.1 查询订单
         int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();        // 5.2.2 判断是否存在
         // 5.1.2 判断是否已经下过单
@@ -100,6 +230,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         // 第一个update()获取“修改执行器”,第二个update()是真正的“执行动作”
         if (!success) {
+            soldOutRegistry.markSoldOut(voucherId);
             return Result.fail("库存不足！");
         }
 
@@ -138,4 +269,117 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        // 如果此时有别的线程进来查询订单,那我们新增的内容可能还没写入数据库!可能存在并发安全问题
 //        // 所以synchronized应该加在调用函数时的地方,而不是函数里面.
     }
+
+    private boolean isUniqueIndexStrategy() {
+        return "unique-index".equals(onePerUserStrategy);
+    }
+
+    /**
+     * 依赖 tb_voucher_order 上 (user_id, voucher_id) 的唯一索引实现一人一单:
+     * 不加锁也不查订单数, 直接插入, 主键冲突就说明已经买过了. 必须在 createVoucherOrder 的事务里调用
+     */
+    private Result createVoucherOrderWithUniqueIndex(Long userId, Long voucherId) {
+        // 1.先插入订单. 重复下单在这一步就失败了, 不会去抢库存那一行的行锁
+        VoucherOrder voucherOrder = new VoucherOrder();
+        long orderId = redisIdWorker.nextId("order");
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            // 唯一索引冲突, MySQL只回滚这一条语句, 事务里没有其他修改
+            return Result.fail("用户已经购买过一次!");
+        }
+        // 2.扣减库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock= stock -1")
+                .eq("voucher_id", voucherId)
+                .gt("stock", 0)
+                .update();
+        if (!success) {
+            // 库存不足, 回滚刚才插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            soldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足！");
+        }
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 批量落库. 数据库库存不够扣时抛异常回滚整批, 由订单队列重试, 多次失败的订单进死信队列
+     * @return 因为唯一索引冲突没能落库的订单id, 它们在Redis里预扣的库存在事务提交后还回去
+     */
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 资格(库存, 一人一单)已经在Redis里判断过了, 这里只负责落库
+        Set<Long> failed = new HashSet<>();
+        // 每张券没能落库的订单数
+        Map<Long, Integer> released = new HashMap<>();
+        // 1.按优惠券分组, 每张券一条多行insert + 一条扣库存update
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        ordersOfVoucher.forEach((voucherId, orders) -> {
+            // 2.多行插入. 消息可能被重复投递(写库成功但ACK前宕机), 主键冲突的行被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted < orders.size()) {
+                // 有行被忽略: 要么是重复投递(订单已经在库里), 要么是唯一索引冲突(这一单没能落库)
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> existing = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                int before = failed.size();
+                ids.stream().filter(id -> !existing.contains(id)).forEach(failed::add);
+                if (failed.size() > before) {
+                    released.put(voucherId, failed.size() - before);
+                }
+            }
+            if (inserted == 0) {
+                return;
+            }
+            // 3.按实际插入的行数扣减库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                // 没有库存的订单不能提交, 整批回滚
+                throw new IllegalStateException("数据库库存不足, 与Redis库存不一致! voucherId="
+                        + voucherId + ", count=" + inserted);
+            }
+        });
+        // 4.没能落库的订单在Redis里预扣过库存, 提交后还回去, 否则每冲突一单Redis就永久少一件库存
+        if (!released.isEmpty()) {
+            runAfterCommit(() -> released.forEach(seckillStockManager::addStock));
+        }
+        return failed;
+    }
+
+    private static void runAfterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long userId, Long orderId) {
+        // 1.先查Redis里的订单状态, key里带着用户id, 查不到别人的订单
+        String status = seckillOrderStatus.get(userId, orderId);
+        if (status != null) {
+            return Result.ok(status);
+        }
+        // 2.状态已过期(或者是同步下单的订单), 查数据库. 别人的订单也当作不存在
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !voucherOrder.getUserId().equals(userId)) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(SeckillOrderStatus.CREATED);
+    }
 }
@@ -1,5 +1,7 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,11 +9,25 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockManager;
+import com.hmdp.utils.SeckillVoucherCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_TTL;
 
 /**
  * <p>
@@ -21,20 +37,72 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockManager seckillStockManager;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisIdWorker redisIdWorker;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.先查Redis缓存, 秒杀开始时大量用户同时打开店铺页面, 不能都去数据库里做关联查询
+        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_VOUCHER_KEY + shopId);
+        if (StrUtil.isNotBlank(json)) {
+            return Result.ok(JSONUtil.toList(json, Voucher.class));
+        }
+        // 2.查询优惠券信息, 并写入缓存
+        List<Voucher> vouchers = cacheVoucherOfShop(shopId);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    public boolean save(Voucher voucher) {
+        boolean success = super.save(voucher);
+        // 店铺的优惠券列表变了, 删除缓存
+        evictVoucherOfShop(voucher.getShopId());
+        return success;
+    }
+
+    @Override
+    @Transactional
+    public boolean updateById(Voucher voucher) {
+        // 店铺可能被改掉, 新旧两个店铺的列表都要删
+        Voucher old = getById(voucher.getId());
+        boolean success = super.updateById(voucher);
+        if (old != null) {
+            evictVoucherOfShop(old.getShopId());
+        }
+        if (voucher.getShopId() != null) {
+            evictVoucherOfShop(voucher.getShopId());
+        }
+        return success;
+    }
+
+    @Override
+    @Transactional
+    public boolean removeById(Serializable id) {
+        Voucher voucher = getById(id);
+        boolean success = super.removeById(id);
+        if (voucher != null) {
+            evictVoucherOfShop(voucher.getShopId());
+        }
+        return success;
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -47,5 +115,99 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交后加载秒杀券时间窗口到进程内缓存, 并通知其他节点
+        seckillVoucherCache.refresh(seckillVoucher);
+        // 保存秒杀库存到Redis中, 异步秒杀时由Lua脚本在Redis里判断库存和一人一单
+        seckillStockManager.initStock(voucher.getId(), voucher.getStock());
+        // 事务提交后预热, 其他节点在开售前由定时任务预热
+        Long voucherId = voucher.getId();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                warmUpSeckillVoucher(voucherId);
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result replenishSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 1.补充数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在！");
+        }
+        // 2.事务提交后再补充Redis库存、清除所有节点的售罄标记, 回滚时Redis不会多出库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // Redis里还没有库存就不补, 由预热从数据库加载(已经包含这次补充的数量)
+                if (!seckillStockManager.addStock(voucherId, count)) {
+                    warmUpSeckillVoucher(voucherId);
+                }
+                soldOutRegistry.reset(voucherId);
+            }
+        });
+        // 3.店铺的优惠券列表里有库存, 删除缓存
+        Voucher voucher = getById(voucherId);
+        if (voucher != null) {
+            evictVoucherOfShop(voucher.getShopId());
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public void warmUpSeckillVoucher(Long voucherId) {
+        // 预热失败不影响秒杀, 没预热到的数据在第一次用到时加载
+        try {
+            Voucher voucher = getById(voucherId);
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null || seckillVoucher == null) {
+                return;
+            }
+            // 1.Redis里没有库存时加载库存(已经有的不覆盖)
+            seckillStockManager.initStockIfAbsent(voucherId, seckillVoucher.getStock());
+            // 2.加载本节点的秒杀券时间窗口和限流规则
+            seckillVoucherCache.get(voucherId);
+            seckillRateLimiter.getRule(voucherId);
+            // 3.提前算好店铺的优惠券列表
+            cacheVoucherOfShop(voucher.getShopId());
+            // 4.提前领好订单id号段, 开抢时第一批请求不用等Redis
+            redisIdWorker.warmUp("order");
+            log.info("秒杀券{}预热完成", voucherId);
+        } catch (Exception e) {
+            log.error("秒杀券{}预热失败", voucherId, e);
+        }
+    }
+
+    /**
+     * 删除店铺的优惠券列表缓存. 在事务里调用时等提交之后再删, 否则别的请求可能在提交前把旧数据又写回缓存
+     */
+    private void evictVoucherOfShop(Long shopId) {
+        Runnable evict = () -> stringRedisTemplate.delete(CACHE_SHOP_VOUCHER_KEY + shopId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict.run();
+                }
+            });
+        } else {
+            evict.run();
+        }
+    }
+
+    private List<Voucher> cacheVoucherOfShop(Long shopId) {
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 列表里的库存只用来展示, 能否下单以Redis里的库存为准, 所以允许有一点延迟
+        stringRedisTemplate.opsForValue().set(CACHE_SHOP_VOUCHER_KEY + shopId,
+                JSONUtil.toJsonStr(vouchers), CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        return vouchers;
     }
 }
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 进程内的布隆过滤器, 元素是long类型的id. 可以并发地添加和查询.
+ * 说不存在就一定不存在; 说存在时有 fpp 的概率误判.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计放入的元素个数, 超过后误判率会升高
+     * @param fpp 期望的误判率, 例如0.01
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        // 位数 m = -n*ln(p) / (ln2)^2, 哈希次数 k = m/n * ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((Math.max(64, m) + 63) >>> 6));
+        this.bitSize = bits.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(long value) {
+        long hash = mix(value);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1, h2, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            // 已经是1就不用CAS, CAS失败说明同一个long里别的位被改了, 重试
+            do {
+                old = bits.get(word);
+            } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(long value) {
+        long hash = mix(value);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1, h2, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    private long index(int h1, int h2, int i) {
+        // 用两个哈希值组合出k个哈希值
+        long combined = h1 + (long) i * h2;
+        return (combined < 0 ? ~combined : combined) % bitSize;
+    }
+
+    private static long mix(long value) {
+        // splitmix64, 连续的id也能打散
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,61 +1,213 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
+/**
+ * 缓存工具类. 缓存的值按类型选择 {@link CacheCodec} 编码后以二进制写入Redis, 默认是json;
+ * 逻辑过期的值外面包一层 版本号(1字节) + 过期时间(8字节毫秒) + 上次重建耗时(4字节毫秒) 的信封, 命中时只需要解码一次.
+ * 逻辑过期的数据会按XFetch算法提前随机刷新: 越接近过期、重建越慢, 提前刷新的概率越大,
+ * 同时写入的大量热点key不会在同一时刻一起过期、一起查库.
+ * 新格式(二进制信封和专门的编解码器)由 hmdp.cache.binary-format.enabled 控制, 默认关闭, 写的还是旧版本能读的json;
+ * 读取时两种格式都认, 所以滚动发布时先让所有节点升级, 再打开开关.
+ */
 @Slf4j
 @Component
 public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockFactory redisLockFactory;
+    private final LocalCache localCache;
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final DefaultRedisScript<Long> FENCED_SET_SCRIPT;
+    static {
+        FENCED_SET_SCRIPT = new DefaultRedisScript<>();
+        FENCED_SET_SCRIPT.setLocation(new ClassPathResource("fenced_set.lua"));
+        FENCED_SET_SCRIPT.setResultType(Long.class);
+    }
+    private static final CacheCodec JSON_CODEC = new JsonCacheCodec();
+    // 逻辑过期信封的版本号, 不会和json的'{'冲突. 版本1没有重建耗时
+    private static final byte ENVELOPE_V1 = 1;
+    private static final int ENVELOPE_V1_HEADER_SIZE = 9;
+    private static final byte ENVELOPE_VERSION = 2;
+    private static final int ENVELOPE_HEADER_SIZE = 13;
+    // 互斥锁模式下, 没抢到锁的线程最多等多久(秒)
+    private static final long MUTEX_WAIT_SECONDS = 3L;
+    // 同一个key的重建在本节点内合并
+    private final SingleFlight singleFlight = new SingleFlight();
+    // key: 缓存key的前缀, value: 判断id是否可能存在的过滤器(布隆过滤器)
+    private final Map<String, Predicate<Object>> filters = new ConcurrentHashMap<>();
+    // key: 缓存的类型, 没有的用json
+    private final Map<Class<?>, CacheCodec> codecs = new HashMap<>();
+
+    /**
+     * 逻辑过期的数据是否按XFetch提前刷新
+     */
+    @Value("${hmdp.cache.early-refresh.enabled:true}")
+    private boolean earlyRefresh;
+    /**
+     * XFetch的beta, 越大越早刷新, 1.0是论文里的推荐值
+     */
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    /**
+     * 没有记录重建耗时的数据(预热写入的、旧格式的)按这个耗时计算提前刷新
+     */
+    @Value("${hmdp.cache.early-refresh.default-rebuild-millis:100}")
+    private long defaultRebuildMillis;
+    /**
+     * 是否用新格式写缓存. 旧版本的节点读不了新格式, 所有节点都升级之后再打开
+     */
+    @Value("${hmdp.cache.binary-format.enabled:false}")
+    private boolean binaryFormat;
+    /**
+     * 写缓存时有效期随机延长的比例, 0.1代表延长0~10%, 避免同时写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter-ratio:0}")
+    private double ttlJitterRatio;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) { // 使用构造函数注入stringRedisTemplate
+    /**
+     * 解码后的逻辑过期数据, 也是它在一级缓存里的形式, 过期时间提前换算成毫秒
+     */
+    private static final class LogicalValue {
+        private final Object data;
+        private final long expireMillis;
+        // 上次重建(查库)的耗时, 决定提前多久开始刷新
+        private final long rebuildMillis;
+
+        private LogicalValue(Object data, long expireMillis, long rebuildMillis) {
+            this.data = data;
+            this.expireMillis = expireMillis;
+            this.rebuildMillis = rebuildMillis;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, // 使用构造函数注入stringRedisTemplate
+                       RedisLockFactory redisLockFactory, LocalCache localCache, List<CacheCodec> codecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisLockFactory = redisLockFactory;
+        this.localCache = localCache;
+        codecs.forEach(codec -> this.codecs.put(codec.type(), codec));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) { // value是任意类型.模拟spring的方式写函数
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit); // stringredistemplate要求参数是string
+        setBytes(key, encode(value), jitter(unit.toMillis(time)));
+        // 通知所有节点删除一级缓存
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 注册id过滤器, 查询这个前缀的缓存前先过滤, 一定不存在的id直接返回null, 不访问Redis和数据库
+     * @param keyPrefix 缓存key的前缀
+     * @param mightExist 返回false代表id一定不存在
+     */
+    public void registerFilter(String keyPrefix, Predicate<Object> mightExist) {
+        filters.put(keyPrefix, mightExist);
+    }
+
+    /**
+     * 删除缓存, 并通知所有节点删除一级缓存
+     * @param key 缓存的key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time))); // 给目标类对应的redisdata加逻辑过期数据
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData)); // 把redisdata序列化然后写入redis
+        setWithLogicalExpire(key, value, time, unit, 0L);
+    }
+
+    /**
+     * @param rebuildMillis 这次重建(查库)的耗时, 用来决定下次提前多久刷新
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long rebuildMillis) {
+        long expireMillis = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        if (!binaryFormat) {
+            // 旧格式: RedisData的json, 旧版本的节点不认识rebuildMillis, 会直接忽略
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+            redisData.setRebuildMillis(rebuildMillis);
+            setBytes(key, JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8), 0);
+            localCache.invalidate(key);
+            return;
+        }
+        // 设置逻辑过期: 信封头部是过期时间和重建耗时, 后面是按类型编码的数据
+        byte[] payload = encode(value);
+        ByteBuffer envelope = ByteBuffer.allocate(ENVELOPE_HEADER_SIZE + payload.length);
+        envelope.put(ENVELOPE_VERSION).putLong(expireMillis)
+                .putInt((int) Math.min(rebuildMillis, Integer.MAX_VALUE)).put(payload);
+        // 写入Redis, 不设置有效期
+        setBytes(key, envelope.array(), 0);
+        localCache.invalidate(key);
     }
 
     public <R,ID> R queryWithPassThrough( // 定义的是工具,所以这里不能返回具体的类(shop),使用泛型.
                                           // 定义泛型,R代表return,ID代表返回值类型
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        // 0.布隆过滤器判断一定不存在的id, 直接返回, 也不用缓存空值
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.1.先查一级缓存, 命中时不访问Redis也不用解析json
+        Object local = localCache.get(key);
+        if (local != null) {
+            return local == LocalCache.NULL ? null : type.cast(local);
+        }
+        long stamp = localCache.stamp(key);
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            R cached = decode(bytes, type);
+            localCache.put(key, cached, stamp);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (json != null) {
+        if (bytes != null) {
             // 返回一个错误信息
+            localCache.put(key, LocalCache.NULL, stamp);
             return null;
         }
 
@@ -63,8 +215,9 @@ public class CacheClient {
         R r = dbFallback.apply(id); // 使用哪个函数由调用者决定.这里是在传递一个有参有返回值的数据库查询逻辑, 使用Function泛型<参数类型, 返回值类型>.
         // 5.不存在，返回错误
         if (r == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            // 将空值写入redis, 其他节点一级缓存里可能还有旧数据, 一起删掉
+            setBytes(key, new byte[0], TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+            localCache.invalidate(key);
             // 返回错误信息
             return null;
         }
@@ -73,98 +226,401 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 批量查询: 一次MGET查Redis, 没命中的一次查库, 再用pipeline一次写回Redis, 不存在的id写空值
+     * @param keyPrefix 缓存key的前缀
+     * @param ids 要查询的id
+     * @param type 缓存的类型
+     * @param dbFallback 按一批id查库(IN查询), 返回 id -> 数据, 不存在的id不用放
+     * @param time 缓存有效期
+     * @param unit 时间单位
+     * @return id -> 数据, 按ids的顺序, 不存在的id不在结果里
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        // 1.先过布隆过滤器和一级缓存
+        List<ID> misses = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            Object local = localCache.get(keyPrefix + id);
+            if (local == null) {
+                misses.add(id);
+            } else if (local != LocalCache.NULL) {
+                result.put(id, type.cast(local));
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        // 2.一次MGET查Redis
+        List<String> keys = new ArrayList<>(misses.size());
+        long[] stamps = new long[misses.size()];
+        byte[][] rawKeys = new byte[misses.size()][];
+        for (int i = 0; i < misses.size(); i++) {
+            keys.add(keyPrefix + misses.get(i));
+            stamps[i] = localCache.stamp(keys.get(i));
+            rawKeys[i] = rawKey(keys.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<ID> dbMisses = new ArrayList<>();
+        for (int i = 0; i < misses.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length > 0) {
+                R r = decode(bytes, type);
+                result.put(misses.get(i), r);
+                localCache.put(keys.get(i), r, stamps[i]);
+            } else if (bytes != null) {
+                // 命中空值, 不存在
+                localCache.put(keys.get(i), LocalCache.NULL, stamps[i]);
+            } else {
+                dbMisses.add(misses.get(i));
+            }
+        }
+        if (dbMisses.isEmpty()) {
+            return sortByIds(ids, result);
+        }
+        // 3.Redis也没有的一次查库
+        Map<ID, R> loaded = dbFallback.apply(dbMisses);
+        if (loaded == null) {
+            loaded = Collections.emptyMap();
+        }
+        result.putAll(loaded);
+        // 4.用pipeline一次写回Redis, 不存在的写空值防止穿透
+        Map<ID, R> found = loaded;
+        long ttlMillis = unit.toMillis(time);
+        long nullTtlMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : dbMisses) {
+                R r = found.get(id);
+                if (r == null) {
+                    connection.stringCommands().pSetEx(rawKey(keyPrefix + id), nullTtlMillis, new byte[0]);
+                } else {
+                    connection.stringCommands().pSetEx(rawKey(keyPrefix + id), jitter(ttlMillis), encode(r));
+                }
+            }
+            return null;
+        });
+        // 5.通知所有节点删除这些key的一级缓存, 一条消息
+        localCache.invalidate(dbMisses.stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+        return sortByIds(ids, result);
+    }
+
+    private static <R, ID> Map<ID, R> sortByIds(Collection<ID> ids, Map<ID, R> result) {
+        Map<ID, R> sorted = new LinkedHashMap<>(result.size());
+        for (ID id : ids) {
+            R r = result.get(id);
+            if (r != null) {
+                sorted.put(id, r);
+            }
+        }
+        return sorted;
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查一级缓存, 逻辑上没过期就直接返回; 过期了要走Redis, 由下面的流程决定是否重建
+        Object local = localCache.get(key);
+        if (local instanceof LogicalValue && ((LogicalValue) local).expireMillis > System.currentTimeMillis()) {
+            LogicalValue value = (LogicalValue) local;
+            // 0.1.快过期的热点key从一级缓存返回时也要有机会提前刷新
+            if (shouldRefreshEarly(value)) {
+                rebuildAsync(key, id, dbFallback, time, unit);
+            }
+            return type.cast(value.data);
+        }
+        long stamp = localCache.stamp(key);
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3.存在，直接返回
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4.命中，解开信封, 数据只解码一次
+        LogicalValue envelope = decodeEnvelope(bytes, type);
+        R r = type.cast(envelope.data);
         // 5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回店铺信息
+        if (envelope.expireMillis > System.currentTimeMillis()) {
+            // 5.1.未过期，放进一级缓存, 直接返回店铺信息. 按概率提前刷新, 越接近过期概率越大
+            localCache.put(key, envelope, stamp);
+            if (shouldRefreshEarly(envelope)) {
+                rebuildAsync(key, id, dbFallback, time, unit);
+            }
             return r;
         }
         // 5.2.已过期，需要缓存重建
+        rebuildAsync(key, id, dbFallback, time, unit);
+        // 6.4.返回过期的商铺信息
+        return r;
+    }
+
+    private boolean shouldRefreshEarly(LogicalValue value) {
+        if (!earlyRefresh) {
+            return false;
+        }
+        // 预热时直接调用 setWithLogicalExpire 写的数据没有重建耗时, 按默认耗时算, 否则永远不会提前刷新
+        long rebuildMillis = value.rebuildMillis > 0 ? value.rebuildMillis : defaultRebuildMillis;
+        return shouldRefreshEarly(System.currentTimeMillis(), value.expireMillis, rebuildMillis,
+                earlyRefreshBeta, ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * XFetch: now - 重建耗时 * beta * ln(random) >= 过期时间 时提前刷新.
+     * ln(random)是负数, 相当于把当前时间随机往后推, 推多远和重建耗时成正比
+     * @param random [0, 1) 的随机数
+     * @return 是否提前刷新
+     */
+    public static boolean shouldRefreshEarly(long now, long expireMillis, long rebuildMillis, double beta, double random) {
+        if (rebuildMillis <= 0 || beta <= 0) {
+            return false;
+        }
+        // nextDouble可能是0, ln(0)是负无穷
+        double gap = -rebuildMillis * beta * Math.log(Math.max(random, Double.MIN_VALUE));
+        return now + gap >= expireMillis;
+    }
+
+    /**
+     * 异步重建逻辑过期的缓存. 本节点同一个key只提交一个重建任务, 重建完成前其他请求不再去抢Redis锁
+     */
+    private <R, ID> void rebuildAsync(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        singleFlight.submit(key, () -> {
+            // 6.1.获取互斥锁
+            String lockKey = LOCK_SHOP_KEY + id;
+            boolean isLock = tryLock(lockKey);
+            // 6.2.判断是否获取锁成功, 失败说明别的节点在重建
+            if (!isLock) {
+                return;
+            }
+            // 6.3.成功，在独立线程里实现缓存重建
+            // 重建期间持有读锁, 不会和数据更新(写锁)交错, 把旧数据写回缓存
+            ILock readLock = rebuildLock(key).readLock();
+            try {
+                if (!readLock.tryLock(MUTEX_WAIT_SECONDS, LOCK_SHOP_TTL, TimeUnit.SECONDS)) {
+                    // 数据正在更新, 更新完会删缓存, 这次不重建了
+                    return;
+                }
                 try {
-                    // 查询数据库
+                    // 查询数据库, 记下耗时
+                    long begin = System.currentTimeMillis();
                     R newR = dbFallback.apply(id);
                     // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
+                    this.setWithLogicalExpire(key, newR, time, unit, System.currentTimeMillis() - begin);
+                } finally {
+                    readLock.unlock();
                 }
-            });
-        }
-        // 6.4.返回过期的商铺信息
-        return r;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }finally {
+                // 释放锁
+                unlock(lockKey);
+            }
+        }, CACHE_REBUILD_EXECUTOR);
     }
 
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查一级缓存, 和 queryWithPassThrough 共用同一份
+        Object local = localCache.get(key);
+        if (local != null) {
+            return local == LocalCache.NULL ? null : type.cast(local);
+        }
+        long stamp = localCache.stamp(key);
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        if (bytes != null && bytes.length > 0) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            R cached = decode(bytes, type);
+            localCache.put(key, cached, stamp);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (bytes != null) {
             // 返回一个错误信息
+            localCache.put(key, LocalCache.NULL, stamp);
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.实现缓存重建: 本节点同一个key的请求合并成一次, 只有leader去抢Redis锁和查库, 其他请求共用结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 4.1.获取互斥锁, 没抢到的线程等锁释放的通知, 不再休眠50ms后递归重试
+        String lockName = "mutex:" + key;
+        ILock lock = redisLockFactory.getLock(lockName);
+        boolean isLock;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            isLock = lock.tryLock(MUTEX_WAIT_SECONDS, LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            // 4.2.拿到锁(或等待超时)后再查一次缓存, 等待期间别的节点可能已经重建好了
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length > 0) {
+                return decode(bytes, type);
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
+            if (bytes != null) {
                 return null;
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
+            // 4.3.根据id查询数据库. 等待超时时也直接查库, 但不写缓存, 交给持有锁的线程去写
+            if (!isLock) {
+                return dbFallback.apply(id);
+            }
+            // 4.4.查库和写缓存期间持有读锁, 数据更新(写锁)要等重建完成
+            ILock readLock = rebuildLock(key).readLock();
+            if (!readLock.tryLock(MUTEX_WAIT_SECONDS, LOCK_SHOP_TTL, TimeUnit.SECONDS)) {
+                // 数据正在更新, 直接查库返回, 不写缓存
+                return dbFallback.apply(id);
+            }
+            try {
+                R r = dbFallback.apply(id);
+                // 5.写缓存时带上fencing token: 查库期间锁过期被别人拿走了, 就不再写缓存, 避免覆盖别人写的新数据
+                String lockKey = RedisReentrantLock.keyOf(lockName);
+                long token = lock.getFencingToken();
+                if (r == null) {
+                    // 不存在, 将空值写入redis, 返回错误信息
+                    setFenced(lockKey, token, key, new byte[0], TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+                    return null;
+                }
+                // 6.存在，写入redis
+                setFenced(lockKey, token, key, encode(r), jitter(unit.toMillis(time)));
+                // 7.返回
+                return r;
+            } finally {
+                readLock.unlock();
+            }
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+        } finally {
+            // 8.释放锁, 只有拿到了锁才释放
+            if (isLock) {
+                lock.unlock();
+            }
         }
-        // 8.返回
-        return r;
+    }
+
+    /**
+     * 缓存重建用的读写锁: 重建缓存(查库+写缓存)持有读锁, 多个重建可以同时进行;
+     * 更新数据库并删除缓存的一方持有写锁, 避免重建把更新前的旧数据写回缓存
+     * @param key 缓存的key
+     * @return 读写锁
+     */
+    public RedisReadWriteLock rebuildLock(String key) {
+        return redisLockFactory.getReadWriteLock("cache:" + key);
+    }
+
+    private byte[] encode(Object value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        if (!binaryFormat) {
+            return JSON_CODEC.encode(value);
+        }
+        return codecs.getOrDefault(value.getClass(), JSON_CODEC).encode(value);
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        // 以'{'开头的是切换编解码器之前写的json
+        CacheCodec codec = bytes[0] == '{' ? JSON_CODEC : codecs.getOrDefault(type, JSON_CODEC);
+        return codec.decode(bytes, type);
+    }
+
+    private <R> LogicalValue decodeEnvelope(byte[] bytes, Class<R> type) {
+        if (bytes[0] == '{') {
+            // 旧格式: RedisData的json, 要解析两遍
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            // 重建时数据库里已经没有这条数据了, data是null
+            R r = redisData.getData() == null ? null : JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            LocalDateTime expireTime = redisData.getExpireTime();
+            long rebuildMillis = redisData.getRebuildMillis() == null ? 0L : redisData.getRebuildMillis();
+            return new LogicalValue(r, expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), rebuildMillis);
+        }
+        int headerSize;
+        long rebuildMillis;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes[0] == ENVELOPE_VERSION) {
+            headerSize = ENVELOPE_HEADER_SIZE;
+            rebuildMillis = buffer.getInt(9);
+        } else if (bytes[0] == ENVELOPE_V1) {
+            headerSize = ENVELOPE_V1_HEADER_SIZE;
+            rebuildMillis = 0L;
+        } else {
+            throw new IllegalStateException("不支持的缓存信封版本: " + bytes[0]);
+        }
+        long expireMillis = buffer.getLong(1);
+        if (bytes.length == headerSize) {
+            // 重建时数据库里已经没有这条数据了
+            return new LogicalValue(null, expireMillis, rebuildMillis);
+        }
+        byte[] payload = Arrays.copyOfRange(bytes, headerSize, bytes.length);
+        return new LogicalValue(decode(payload, type), expireMillis, rebuildMillis);
+    }
+
+    /**
+     * 有效期随机延长 0 ~ ttlJitterRatio
+     */
+    private long jitter(long ttlMillis) {
+        if (ttlJitterRatio <= 0 || ttlMillis <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * ttlJitterRatio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
+    }
+
+    /**
+     * @param ttlMillis 有效期, 0代表不过期
+     */
+    private void setBytes(String key, byte[] value, long ttlMillis) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> ttlMillis > 0
+                ? connection.stringCommands().pSetEx(rawKey(key), ttlMillis, value)
+                : connection.stringCommands().set(rawKey(key), value));
+    }
+
+    private static byte[] rawKey(String key) {
+        // 和StringRedisTemplate的key序列化方式一样
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        Predicate<Object> filter = filters.get(keyPrefix);
+        return filter == null || filter.test(id);
+    }
+
+    /**
+     * 锁还被这个fencing token持有时才写入缓存, 写入后通知所有节点删除一级缓存
+     */
+    private void setFenced(String lockKey, long token, String key, byte[] value, long ttlMillis) {
+        // 值是二进制, 参数按原样传给脚本
+        Long result = stringRedisTemplate.execute(FENCED_SET_SCRIPT, RedisSerializer.byteArray(),
+                new GenericToStringSerializer<>(Long.class), Arrays.asList(lockKey, key),
+                String.valueOf(token).getBytes(StandardCharsets.UTF_8), value,
+                String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8));
+        if (result == null || result != 1L) {
+            log.warn("重建缓存{}时锁已经过期(fencing token={}), 放弃写入", key, token);
+            return;
+        }
+        localCache.invalidate(key);
     }
 
     private boolean tryLock(String key) {
@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器. {@link CacheClient} 按缓存的类型选择编解码器, 没有专门编解码器的类型用 {@link JsonCacheCodec}.
+ * 实现类注册成Spring Bean, 并打开 hmdp.cache.binary-format.enabled 后才用来写缓存, 读缓存时一直可用. 编码结果不能以'{'开头, 这样切换编解码器后Redis里还没过期的json也能读出来.
+ */
+public interface CacheCodec {
+
+    /**
+     * @return 负责编解码的类型
+     */
+    Class<?> type();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+}
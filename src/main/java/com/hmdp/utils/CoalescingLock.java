@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两级锁: 先拿进程内的本地锁, 拿到了才去拿Redis锁.
+ * 同一个节点上同一个key的其他线程在本地等待(或直接失败), 不会各自去Redis上SET NX.
+ */
+public class CoalescingLock implements ILock {
+
+    private final String key;
+    private final ILock redisLock;
+    private final LocalLockRegistry registry;
+    private LocalLockRegistry.Entry entry;
+
+    public CoalescingLock(String key, ILock redisLock, LocalLockRegistry registry) {
+        this.key = key;
+        this.redisLock = redisLock;
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        LocalLockRegistry.Entry local = registry.acquire(key);
+        // 1.本地锁被本节点的其他线程占着, 它拿到Redis锁的话我们也拿不到, 不用再去问Redis
+        if (!local.lock.tryLock()) {
+            registry.recordAcquire(key, true);
+            registry.release(key);
+            return false;
+        }
+        registry.recordAcquire(key, false);
+        // 2.本节点只有当前线程去拿Redis锁
+        registry.recordRedisAttempt(key);
+        boolean success = false;
+        try {
+            success = redisLock.tryLock(timeoutSec);
+        } finally {
+            afterRedisAttempt(local, success);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        LocalLockRegistry.Entry local = registry.acquire(key);
+        // 1.先在本地排队, 排在前面的线程拿到又释放之后才轮到当前线程
+        boolean contended = !local.lock.tryLock();
+        if (contended) {
+            boolean locked;
+            try {
+                locked = local.lock.tryLock(waitTime, unit);
+            } catch (InterruptedException e) {
+                registry.release(key);
+                throw e;
+            }
+            if (!locked) {
+                registry.recordAcquire(key, true);
+                registry.release(key);
+                return false;
+            }
+        }
+        registry.recordAcquire(key, contended);
+        // 2.剩下的等待时间用来等Redis锁(其他节点的线程)
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        registry.recordRedisAttempt(key);
+        boolean success = false;
+        try {
+            success = redisLock.tryLock(remaining, unit.toNanos(leaseTime), TimeUnit.NANOSECONDS);
+        } finally {
+            afterRedisAttempt(local, success);
+        }
+        return success;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return redisLock.getFencingToken();
+    }
+
+    @Override
+    public boolean checkFencingToken(long token) {
+        return redisLock.checkFencingToken(token);
+    }
+
+    @Override
+    public void unlock() {
+        // 先释放Redis锁, 再放本地排队的下一个线程去拿
+        try {
+            redisLock.unlock();
+        } finally {
+            LocalLockRegistry.Entry local = entry;
+            if (local != null && local.lock.isHeldByCurrentThread()) {
+                local.lock.unlock();
+                if (!local.lock.isHeldByCurrentThread()) {
+                    entry = null;
+                }
+                registry.release(key);
+            }
+        }
+    }
+
+    private void afterRedisAttempt(LocalLockRegistry.Entry local, boolean success) {
+        if (success) {
+            entry = local;
+        } else {
+            // 没拿到Redis锁, 放开本地锁让排队的线程去试
+            local.lock.unlock();
+            registry.release(key);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -9,6 +11,37 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁, 获取不到时最多等待waitTime, 锁被释放时立即被唤醒
+     * @param waitTime 最长等待时间, 0代表不等待
+     * @param leaseTime 锁持有的超时时间，过期后自动释放
+     * @param unit 时间单位
+     * @return true代表获取锁成功；false代表等待超时
+     */
+    default boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        // 不支持等待的实现只尝试一次
+        return tryLock(unit.toSeconds(leaseTime));
+    }
+
+    /**
+     * 最近一次获取锁成功时分配的fencing token, 单调递增, 重入时不变
+     * @return fencing token, 不支持的实现返回0
+     */
+    default long getFencingToken() {
+        return 0L;
+    }
+
+    /**
+     * 查询锁当前是否还被这个fencing token持有. 只是一次检查, 检查之后锁仍可能过期,
+     * 不能代替在被保护的资源一侧比较token(例如数据库里的 tb_lock_fence, 缓存写入的 fenced_set.lua)
+     * @param token 获取锁时拿到的fencing token
+     * @return true代表锁还被这个token持有
+     * @throws UnsupportedOperationException 不支持fencing token的实现
+     */
+    default boolean checkFencingToken(long token) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " 不支持fencing token");
+    }
+
     /**
      * 释放锁
      */
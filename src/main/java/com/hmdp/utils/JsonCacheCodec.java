@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 默认的编解码器: Hutool json, 和原来直接存json字符串的格式一样
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public Class<?> type() {
+        return Object.class;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+}
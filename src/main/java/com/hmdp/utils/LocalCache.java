@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * {@link CacheClient} 的进程内一级缓存, 放在Redis前面, 热点数据直接从堆里返回, 不访问Redis也不用解析json.
+ * 按key的hash分成多个段, 每段是一个按访问顺序淘汰的LRU, 段内加锁, 不同段之间互不影响.
+ * 数据变更时通过Redis发布订阅通知所有节点删除本地缓存; 万一消息丢了, 最多过 ttl-seconds 也会失效.
+ * 失效版本按key的hash分成 STAMP_STRIPES 份, 一个key失效只会让同一份里并发的写入作废, 不影响其他key.
+ * 缓存的是同一个对象, 调用方不能修改返回的对象.
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+
+    /**
+     * 缓存的空值, 和没有缓存区分开
+     */
+    public static final Object NULL = new Object();
+    private static final int SEGMENTS = 16;
+    private static final int STAMP_STRIPES = 1024;
+
+    private static final class Entry {
+        private final Object value;
+        private final long expireAt;
+
+        private Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    /**
+     * 是否启用一级缓存
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean enabled;
+    /**
+     * 最多缓存多少个key
+     */
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private int maximumSize;
+    /**
+     * 本地缓存的有效期, 兜底失效通知丢失的情况
+     */
+    @Value("${hmdp.cache.local.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    private Segment[] segments;
+    // 每份key的失效次数. 读Redis前记下, 写本地缓存时如果变了, 读到的可能是旧数据, 不写
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    // 本节点的标识, 放在失效通知的第一行, 收到自己发的通知时不用再删一次
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        segments = new Segment[SEGMENTS];
+        int capacity = Math.max(1, maximumSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity);
+        }
+        container.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * @param key 缓存的key
+     * @return 缓存的值, 没有缓存返回null, 缓存的空值返回 {@link #NULL}
+     */
+    public Object get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAt <= System.currentTimeMillis()) {
+                segment.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * 读Redis之前调用, 结果传给 {@link #put}
+     * @param key 缓存的key
+     * @return 这个key当前的失效版本
+     */
+    public long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * 写入本地缓存. 从stamp到现在这个key(或者同一份里的其他key)失效过的话不写, 防止把失效前读到的旧数据放进来
+     * @param key 缓存的key
+     * @param value 缓存的值, 空值用 {@link #NULL}
+     * @param stamp 读Redis之前的 {@link #stamp(String)}
+     */
+    public void put(String key, Object value, long stamp) {
+        if (!enabled) {
+            return;
+        }
+        Segment segment = segment(key);
+        synchronized (segment) {
+            // 在段锁里检查, 和失效时的删除互斥
+            if (stamps.get(stripe(key)) != stamp) {
+                return;
+            }
+            segment.put(key, new Entry(value, System.currentTimeMillis() + ttlSeconds * 1000));
+        }
+    }
+
+    /**
+     * 删除本节点的缓存, 并通知其他节点删除
+     * @param key 缓存的key
+     */
+    public void invalidate(String key) {
+        invalidate(Collections.singletonList(key));
+    }
+
+    /**
+     * 删除本节点的一批缓存, 并用一条消息通知其他节点删除
+     * @param keys 缓存的key
+     */
+    public void invalidate(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        keys.forEach(this::evict);
+        // 消息格式: 节点标识\nkey\nkey...
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + "\n" + String.join("\n", keys));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        List<String> lines = StrUtil.split(new String(message.getBody(), StandardCharsets.UTF_8), '\n');
+        // 自己发的通知在发送前已经删过了, 不再删一次, 免得把删除之后读到的新数据也作废
+        if (lines.isEmpty() || nodeId.equals(lines.get(0))) {
+            return;
+        }
+        lines.subList(1, lines.size()).forEach(this::evict);
+    }
+
+    private void evict(String key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            stamps.incrementAndGet(stripe(key));
+            segment.remove(key);
+        }
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+}
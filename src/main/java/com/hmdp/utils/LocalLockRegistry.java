@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 进程内的按key加锁, 放在Redis锁前面: 同一个节点上同一个key同时只放一个线程去访问Redis锁,
+ * 其他线程在本地等, 这样同一个key的Redis加锁请求数不会随着本节点的并发线程数增加.
+ * 没有线程在用的key会被移除, 不会无限增长. 同时按key统计竞争次数.
+ */
+@Component
+public class LocalLockRegistry {
+
+    // 最多统计多少个key的竞争次数, 超过的只计入总数
+    private static final int MAX_TRACKED_KEYS = 10_000;
+
+    /**
+     * 一个key的本地锁, refs是正在使用这把锁(持有或等待)的线程数, 减到0就从map里移除
+     */
+    static final class Entry {
+        final ReentrantLock lock = new ReentrantLock();
+        private int refs;
+    }
+
+    /**
+     * 一个key的竞争统计
+     */
+    private static final class Counters {
+        // 获取本地锁的次数
+        private final LongAdder acquires = new LongAdder();
+        // 本地锁被别的线程占着, 需要等待或直接失败的次数
+        private final LongAdder contended = new LongAdder();
+        // 真正访问Redis锁的次数
+        private final LongAdder redisAttempts = new LongAdder();
+    }
+
+    private final Map<String, Entry> locks = new ConcurrentHashMap<>();
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private final Counters total = new Counters();
+
+    /**
+     * 取得key对应的本地锁并增加引用, 用完必须调用 {@link #release(String)}
+     */
+    Entry acquire(String key) {
+        return locks.compute(key, (k, e) -> {
+            if (e == null) {
+                e = new Entry();
+            }
+            e.refs++;
+            return e;
+        });
+    }
+
+    /**
+     * 减少引用, 没有线程在用时移除
+     */
+    void release(String key) {
+        locks.computeIfPresent(key, (k, e) -> --e.refs > 0 ? e : null);
+    }
+
+    void recordAcquire(String key, boolean contended) {
+        total.acquires.increment();
+        Counters c = counters(key);
+        if (c != null) {
+            c.acquires.increment();
+        }
+        if (contended) {
+            total.contended.increment();
+            if (c != null) {
+                c.contended.increment();
+            }
+        }
+    }
+
+    void recordRedisAttempt(String key) {
+        total.redisAttempts.increment();
+        Counters c = counters(key);
+        if (c != null) {
+            c.redisAttempts.increment();
+        }
+    }
+
+    /**
+     * 竞争统计: 总数, 以及竞争最多的前top个key
+     * @param top 返回多少个key
+     */
+    public Map<String, Object> stats(int top) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("acquires", total.acquires.sum());
+        stats.put("contended", total.contended.sum());
+        stats.put("redisAttempts", total.redisAttempts.sum());
+        stats.put("activeKeys", locks.size());
+        List<Map<String, Object>> keys = counters.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().contended.sum(), a.getValue().contended.sum()))
+                .limit(top)
+                .map(e -> {
+                    Map<String, Object> item = new LinkedHashMap<>();
+                    item.put("key", e.getKey());
+                    item.put("acquires", e.getValue().acquires.sum());
+                    item.put("contended", e.getValue().contended.sum());
+                    item.put("redisAttempts", e.getValue().redisAttempts.sum());
+                    return item;
+                })
+                .collect(Collectors.toList());
+        stats.put("topKeys", keys);
+        return stats;
+    }
+
+    private Counters counters(String key) {
+        Counters c = counters.get(key);
+        if (c == null && counters.size() < MAX_TRACKED_KEYS) {
+            c = counters.computeIfAbsent(key, k -> new Counters());
+        }
+        return c;
+    }
+}
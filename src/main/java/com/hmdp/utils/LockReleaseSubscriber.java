@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 锁释放通知: 释放锁的Lua脚本会往 lock:release:{锁的key} 发一条消息,
+ * 这里用一个模式订阅接收所有锁的释放消息, 唤醒本节点上正在等这把锁的线程.
+ * 整个节点共用一条订阅连接, 不会每个等待的线程订阅一次.
+ */
+@Component
+public class LockReleaseSubscriber implements MessageListener {
+
+    public static final String CHANNEL_PREFIX = "lock:release:";
+
+    /**
+     * 一把锁的等待者, 锁释放时按等待人数发放许可
+     */
+    private static final class Waiters {
+        private final Semaphore semaphore = new Semaphore(0);
+        private int count;
+    }
+
+    private final RedisMessageListenerContainer container;
+
+    // key: 锁的key
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    public LockReleaseSubscriber(RedisMessageListenerContainer container) {
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new PatternTopic(CHANNEL_PREFIX + "*"));
+    }
+
+    /**
+     * @param key 锁的key
+     * @return 这把锁的释放通知频道
+     */
+    public static String channel(String key) {
+        return CHANNEL_PREFIX + key;
+    }
+
+    /**
+     * 登记为这把锁的等待者, 等待结束后必须调用 {@link #leave(String)}
+     * @param key 锁的key
+     */
+    public void join(String key) {
+        waiters.compute(key, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+    }
+
+    /**
+     * 取消登记
+     * @param key 锁的key
+     */
+    public void leave(String key) {
+        waiters.computeIfPresent(key, (k, w) -> --w.count > 0 ? w : null);
+    }
+
+    /**
+     * 等待锁释放的通知, 收到通知或者超时都会返回, 返回后要重新尝试获取锁
+     * @param key 锁的key
+     * @param timeoutMillis 最多等多久
+     */
+    public void await(String key, long timeoutMillis) throws InterruptedException {
+        Waiters w = waiters.get(key);
+        if (w == null) {
+            return;
+        }
+        w.semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Waiters w = waiters.get(channel.substring(CHANNEL_PREFIX.length()));
+        if (w != null) {
+            // 唤醒所有等待者一起去抢, 抢不到的继续等
+            w.semaphore.release(Math.max(w.count, 1));
+        }
+    }
+}
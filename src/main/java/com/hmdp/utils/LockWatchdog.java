@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁的看门狗: 锁还被持有时定期续期, 调用方可以放心地用很短的有效期,
+ * 节点宕机后续期停止, 锁很快就会自动过期.
+ * 整个节点只有一个定时线程, 每次把到期需要续期的锁按批次用一个Lua脚本续期, 不会每把锁一个线程.
+ * 读写锁的读锁只续期读者自己的到期时间, 见 {@link RedisReadWriteLock}.
+ */
+@Slf4j
+@Component
+public class LockWatchdog {
+
+    /**
+     * 一把被持有的锁
+     */
+    private static final class Lease {
+        private final String key;
+        // 读写锁的读者租约key, 不是读锁时为null
+        private final String readersKey;
+        private final String owner;
+        private final long ttlMillis;
+        // 本节点上这把锁的重入次数, 减到0才停止续期
+        private int holds = 1;
+        private volatile long nextRenewAt;
+
+        private Lease(String key, String readersKey, String owner, long ttlMillis) {
+            this.key = key;
+            this.readersKey = readersKey;
+            this.owner = owner;
+            this.ttlMillis = ttlMillis;
+            this.nextRenewAt = System.currentTimeMillis() + ttlMillis / 3;
+        }
+    }
+
+    private static final DefaultRedisScript<List> RENEW_SCRIPT;
+    private static final DefaultRedisScript<List> READ_RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(List.class);
+        READ_RENEW_SCRIPT = new DefaultRedisScript<>();
+        READ_RENEW_SCRIPT.setLocation(new ClassPathResource("rw_read_renew.lua"));
+        READ_RENEW_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 看门狗检查的间隔, 要比最短的锁有效期的1/3还短
+     */
+    @Value("${hmdp.lock.watchdog-tick-millis:1000}")
+    private long tickMillis;
+    /**
+     * 一个续期脚本最多续多少把锁
+     */
+    @Value("${hmdp.lock.watchdog-batch-size:100}")
+    private int batchSize;
+
+    // key: 锁的key + 持有者标识
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LockWatchdog(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::renewExpiring, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 获取锁成功后调用, 开始续期. 同一把锁重入时只记录次数
+     * @param key 锁的key
+     * @param owner 持有者标识
+     * @param ttlMillis 锁的有效期, 每过1/3续期一次
+     */
+    public void watch(String key, String owner, long ttlMillis) {
+        watchReader(key, null, owner, ttlMillis);
+    }
+
+    /**
+     * 获取读写锁的读锁成功后调用, 续期时延长读者自己的到期时间. 同一把锁重入时只记录次数
+     * @param key 锁的key
+     * @param readersKey 读者租约的key, 为null时按普通的锁续期
+     * @param owner 持有者标识
+     * @param ttlMillis 锁的有效期, 每过1/3续期一次
+     */
+    public void watchReader(String key, String readersKey, String owner, long ttlMillis) {
+        leases.compute(key + "#" + owner, (k, lease) -> {
+            if (lease == null) {
+                return new Lease(key, readersKey, owner, ttlMillis);
+            }
+            lease.holds++;
+            return lease;
+        });
+    }
+
+    /**
+     * 释放锁后调用, 最外层释放时停止续期
+     * @param key 锁的key
+     * @param owner 持有者标识
+     */
+    public void unwatch(String key, String owner) {
+        leases.computeIfPresent(key + "#" + owner, (k, lease) -> --lease.holds > 0 ? lease : null);
+    }
+
+    /**
+     * @return 本节点正在续期的锁的数量
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    private void renewExpiring() {
+        try {
+            // 1.找出到了续期时间的锁
+            long now = System.currentTimeMillis();
+            List<Lease> due = new ArrayList<>();
+            for (Lease lease : leases.values()) {
+                if (lease.nextRenewAt <= now) {
+                    due.add(lease);
+                }
+            }
+            // 2.普通的锁和读锁用不同的脚本, 分批续期
+            List<Lease> readers = new ArrayList<>();
+            due.removeIf(lease -> lease.readersKey != null && readers.add(lease));
+            for (int from = 0; from < due.size(); from += batchSize) {
+                renew(due.subList(from, Math.min(from + batchSize, due.size())), now, false);
+            }
+            for (int from = 0; from < readers.size(); from += batchSize) {
+                renew(readers.subList(from, Math.min(from + batchSize, readers.size())), now, true);
+            }
+        } catch (Exception e) {
+            // 续期失败时锁还有剩余的有效期, 下一轮再试
+            log.error("锁续期失败", e);
+        }
+    }
+
+    private void renew(List<Lease> batch, long now, boolean readers) {
+        List<String> keys = new ArrayList<>(batch.size() * (readers ? 2 : 1));
+        Object[] args = new String[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            Lease lease = batch.get(i);
+            keys.add(lease.key);
+            if (readers) {
+                keys.add(lease.readersKey);
+            }
+            args[2 * i] = lease.owner;
+            args[2 * i + 1] = String.valueOf(lease.ttlMillis);
+        }
+        List<?> result = stringRedisTemplate.execute(readers ? READ_RENEW_SCRIPT : RENEW_SCRIPT, keys, args);
+        for (int i = 0; i < batch.size(); i++) {
+            Lease lease = batch.get(i);
+            if (result != null && Long.valueOf(1L).equals(result.get(i))) {
+                lease.nextRenewAt = now + lease.ttlMillis / 3;
+            } else {
+                // 锁已经过期或者被别人拿走了, 不用再续期
+                log.warn("锁{}已经不属于{}, 停止续期", lease.key, lease.owner);
+                leases.remove(lease.key + "#" + lease.owner, lease);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 多个独立Redis上的多数派锁(Redlock): 同时向N个Redis发 SET NX PX, 超过半数成功,
+ * 并且扣掉加锁耗时和时钟漂移之后锁还有剩余有效期, 才算加锁成功; 否则把所有节点上的锁都释放掉.
+ * 任何一个Redis宕机都不影响加锁和释放. 不可重入, 和 {@link SimpleRedisLock} 一样每次加锁新建一个.
+ */
+@Slf4j
+public class RedLock implements ILock {
+
+    private static final String KEY_PREFIX = "lock:";
+    // 时钟漂移系数, 按Redlock的建议取有效期的1%, 再加2毫秒
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String key;
+    private final List<StringRedisTemplate> nodes;
+    private final ExecutorService executor;
+    private final long nodeTimeoutMillis;
+    // 每次加锁用一个随机值, 只能释放自己加的锁
+    private final String token = UUID.randomUUID().toString(true);
+    // 加锁成功后锁的剩余有效期
+    private volatile long validityMillis;
+
+    /**
+     * @param name 锁的名字
+     * @param nodes 各个独立的Redis
+     * @param executor 并发访问各个节点的线程池
+     * @param nodeTimeoutMillis 单个节点的超时时间, 要远小于锁的有效期, 避免在宕机的节点上卡太久
+     */
+    public RedLock(String name, List<StringRedisTemplate> nodes, ExecutorService executor, long nodeTimeoutMillis) {
+        this.key = KEY_PREFIX + name;
+        this.nodes = nodes;
+        this.executor = executor;
+        this.nodeTimeoutMillis = nodeTimeoutMillis;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return tryLockMillis(timeoutSec * 1000);
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        // 按毫秒传给PX, 不足1秒的有效期不会被截断成0
+        long leaseMillis = unit.toMillis(leaseTime);
+        if (leaseMillis <= 0) {
+            throw new IllegalArgumentException("锁的有效期至少1毫秒: " + leaseTime + " " + unit);
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        while (true) {
+            if (tryLockMillis(leaseMillis)) {
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            // 多个节点上没有统一的释放通知, 随机退避后重试, 避免多个客户端同时重试又各拿到一部分节点
+            Thread.sleep(Math.min(remaining, ThreadLocalRandom.current().nextLong(10, 50)));
+        }
+    }
+
+    private boolean tryLockMillis(long ttlMillis) {
+        long begin = System.currentTimeMillis();
+        // 1.同时向所有节点加锁, 耗时接近一次网络往返
+        List<Future<Boolean>> futures = fanOut(node ->
+                Boolean.TRUE.equals(node.opsForValue().setIfAbsent(key, token, ttlMillis, TimeUnit.MILLISECONDS)));
+        int acquired = 0;
+        for (Future<Boolean> future : futures) {
+            if (Boolean.TRUE.equals(await(future, begin + nodeTimeoutMillis))) {
+                acquired++;
+            }
+        }
+        // 2.剩余有效期 = 有效期 - 加锁耗时 - 时钟漂移
+        long elapsed = System.currentTimeMillis() - begin;
+        long drift = (long) (ttlMillis * CLOCK_DRIFT_FACTOR) + 2;
+        long validity = ttlMillis - elapsed - drift;
+        // 3.超过半数成功且还有剩余有效期才算成功
+        if (acquired >= quorum() && validity > 0) {
+            validityMillis = validity;
+            return true;
+        }
+        // 4.失败, 把已经加上的(包括超时但其实成功了的)锁都释放掉
+        unlock();
+        return false;
+    }
+
+    @Override
+    public void unlock() {
+        // 所有节点都要释放, 包括加锁时没有成功的节点
+        long begin = System.currentTimeMillis();
+        List<Future<Boolean>> futures = fanOut(node -> {
+            node.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
+            return true;
+        });
+        for (Future<Boolean> future : futures) {
+            await(future, begin + nodeTimeoutMillis);
+        }
+    }
+
+    /**
+     * @return 加锁成功时锁的剩余有效期(毫秒), 业务要在这个时间内完成
+     */
+    public long getValidityMillis() {
+        return validityMillis;
+    }
+
+    private int quorum() {
+        return nodes.size() / 2 + 1;
+    }
+
+    private interface NodeCall {
+        Boolean call(StringRedisTemplate node);
+    }
+
+    private List<Future<Boolean>> fanOut(NodeCall call) {
+        List<Future<Boolean>> futures = new ArrayList<>(nodes.size());
+        for (StringRedisTemplate node : nodes) {
+            futures.add(executor.submit(() -> call.call(node)));
+        }
+        return futures;
+    }
+
+    private Boolean await(Future<Boolean> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (TimeoutException e) {
+            // 超时当作这个节点失败, 取消还没执行或还在等待的命令, 不让它继续占着线程池
+            future.cancel(true);
+            log.warn("Redlock节点操作超时, key={}", key);
+            return false;
+        } catch (ExecutionException e) {
+            // 节点宕机, 当作这个节点失败
+            log.warn("Redlock节点操作失败, key={}: {}", key, e.toString());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.SocketOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 创建多数派锁 {@link RedLock}. 节点通过 hmdp.lock.redlock.nodes 配置, 格式 host:port[/db], 逗号分隔,
+ * 每个节点单独建一个连接, 命令超时和连接超时都是单个节点的超时时间, 宕机的节点不会一直占着线程;
+ * 没有配置时只用 spring.redis 这一个Redis(退化成单节点锁, 超时时间是 spring.redis.timeout).
+ */
+@Component
+public class RedLockFactory {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Redlock的各个独立Redis节点
+     */
+    @Value("${hmdp.lock.redlock.nodes:}")
+    private String nodeAddresses;
+    /**
+     * 所有节点共用 spring.redis 的密码
+     */
+    @Value("${spring.redis.password:}")
+    private String password;
+    /**
+     * 单个节点的超时时间
+     */
+    @Value("${hmdp.lock.redlock.node-timeout-millis:50}")
+    private long nodeTimeoutMillis;
+
+    private final List<LettuceConnectionFactory> connectionFactories = new ArrayList<>();
+    private List<StringRedisTemplate> nodes;
+    private ExecutorService executor;
+
+    public RedLockFactory(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        List<StringRedisTemplate> templates = new ArrayList<>();
+        for (String address : StrUtil.splitTrim(nodeAddresses, ',')) {
+            templates.add(createTemplate(address));
+        }
+        if (templates.isEmpty()) {
+            templates.add(stringRedisTemplate);
+        }
+        nodes = Collections.unmodifiableList(templates);
+        // 每次加锁/释放同时访问所有节点
+        executor = Executors.newFixedThreadPool(Math.max(4, nodes.size() * 4), r -> {
+            Thread thread = new Thread(r, "redlock");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+        connectionFactories.forEach(LettuceConnectionFactory::destroy);
+    }
+
+    /**
+     * @param name 锁的名字, 每个Redis里的key都是 lock:{name}
+     * @return 锁对象
+     */
+    public RedLock getLock(String name) {
+        return new RedLock(name, nodes, executor, nodeTimeoutMillis);
+    }
+
+    /**
+     * @return 节点数
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    private StringRedisTemplate createTemplate(String address) {
+        // host:port[/db]
+        String hostPort = StrUtil.subBefore(address, "/", false);
+        int database = address.contains("/") ? Integer.parseInt(StrUtil.subAfter(address, "/", false)) : 0;
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration(
+                StrUtil.subBefore(hostPort, ":", true), Integer.parseInt(StrUtil.subAfter(hostPort, ":", true)));
+        config.setDatabase(database);
+        if (StrUtil.isNotEmpty(password)) {
+            config.setPassword(password);
+        }
+        // 超过单个节点的超时时间后Lettuce直接让命令失败, 不会在宕机的节点上等默认的60秒
+        Duration timeout = Duration.ofMillis(nodeTimeoutMillis);
+        LettuceClientConfiguration clientConfig = LettuceClientConfiguration.builder()
+                .commandTimeout(timeout)
+                .clientOptions(ClientOptions.builder()
+                        .socketOptions(SocketOptions.builder().connectTimeout(timeout).build())
+                        .build())
+                .build();
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(config, clientConfig);
+        factory.afterPropertiesSet();
+        connectionFactories.add(factory);
+        return new StringRedisTemplate(factory);
+    }
+}
@@ -10,11 +10,34 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 10L;
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop:voucher:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_SHOP_BLOOM_CHANNEL = "cache:shop:bloom:add";
+    public static final String CACHE_SHOP_BLOOM_RECENT_KEY = "cache:shop:bloom:recent";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_STOCK_SHARDS_KEY = "seckill:stock:shards:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_CONSUMER_KEY = "seckill:order:consumer:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 600L;
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher:changed";
+    public static final String SECKILL_RATE_BUCKET_KEY = "seckill:limit:bucket:";
+    public static final String SECKILL_RATE_RULE_KEY = "seckill:limit:rule:";
+    public static final String SECKILL_RATE_RULE_CHANNEL = "seckill:limit:changed";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data; // 避免修改Shop类（继承）
+    private Long rebuildMillis; // 上次重建(查库)的耗时, 旧版本写的没有
 }
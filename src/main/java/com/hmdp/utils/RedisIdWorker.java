@@ -1,14 +1,63 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.util.StrUtil;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 全局id生成器. 默认是 秒级时间戳 << 32 | 当天的Redis自增序列号, 序列号按号段从Redis领取;
+ * hmdp.id.snowflake-prefixes 里的业务改用 {@link SnowflakeIdWorker}, 发号不访问Redis.
+ */
+@Slf4j
 @Component
 public class RedisIdWorker { // 基于redis的Id生成器
+
+    /**
+     * id生成器的种类
+     */
+    public enum Generator {
+        // Redis自增序列号(号段)
+        REDIS,
+        // 本地雪花算法
+        SNOWFLAKE
+    }
+
+    /**
+     * 解析出来的id
+     */
+    @Data
+    public static class DecodedId {
+        private Generator generator;
+        // 生成时间(本地时间), Redis生成器精确到秒, 雪花算法精确到毫秒
+        private LocalDateTime time;
+        // Redis生成器是当天的自增序列号, 雪花算法是毫秒内的序列号
+        private long sequence;
+        // 雪花算法的worker id, Redis生成器没有
+        private Long workerId;
+    }
     /**
      * 开始时间戳
      */
@@ -17,38 +66,371 @@ public class RedisIdWorker { // 基于redis的Id生成器
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32; // 序列号的位数
+    /**
+     * 每天最大的序列号, 超过就会占用时间戳的位
+     */
+    private static final long MAX_COUNT = (1L << COUNT_BITS) - 1;
+    /**
+     * 发号速率统计的窗口(秒)
+     */
+    private static final int STATS_WINDOW_SECONDS = 60;
+    /**
+     * 号段用掉多少比例时开始异步预取下一段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd"); // 用:隔开,方便更精确的统计
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 号段大小: 每次用INCRBY从Redis领一段序列号, 在本地一个个发. 0代表不用号段, 每个id一次INCR
+     */
+    private final int segmentSize;
+    private final SnowflakeIdWorker snowflakeIdWorker;
+    /**
+     * 改用雪花算法的业务前缀, 逗号分隔
+     */
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private String snowflakePrefixes;
+    /**
+     * 当天剩余序列号低于这个比例时告警
+     */
+    @Value("${hmdp.id.headroom-warn-ratio:0.1}")
+    private double headroomWarnRatio = 0.1;
+
+    // 当天的日期, 跨天时才重新格式化
+    private volatile Day today = new Day(Long.MIN_VALUE, 0, null);
+    // key: 业务前缀
+    private final Map<String, SequenceBuffer> buffers = new ConcurrentHashMap<>();
+    // key: 业务前缀, 没有的用Redis
+    private final Map<String, Generator> generators = new ConcurrentHashMap<>();
+    // key: 业务前缀
+    private final Map<String, IssueStats> issueStats = new ConcurrentHashMap<>();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, int segmentSize) {
+        this(stringRedisTemplate, segmentSize, null);
+    }
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment-size:1000}") int segmentSize,
+                         SnowflakeIdWorker snowflakeIdWorker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = segmentSize;
+        this.snowflakeIdWorker = snowflakeIdWorker;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String keyPrefix : StrUtil.splitTrim(snowflakePrefixes, ',')) {
+            switchGenerator(keyPrefix, Generator.SNOWFLAKE);
+        }
+    }
+
+    /**
+     * 切换一个业务用的id生成器. 两种生成器的id不会重复, 可以随时切换.
+     * 第一次切换到雪花算法时才去租worker id, 没有空闲的worker id时切换失败, 业务继续用原来的生成器
+     * @param keyPrefix 业务前缀
+     * @param generator id生成器
+     */
+    public void switchGenerator(String keyPrefix, Generator generator) {
+        if (generator == Generator.SNOWFLAKE) {
+            if (snowflakeIdWorker == null) {
+                throw new IllegalStateException("没有可用的雪花算法生成器");
+            }
+            snowflakeIdWorker.start();
+        }
+        generators.put(keyPrefix, generator);
     }
 
     public long nextId(String keyPrefix) {
+        IssueStats stats = issueStats.get(keyPrefix);
+        if (stats == null) {
+            stats = issueStats.computeIfAbsent(keyPrefix, k -> new IssueStats());
+        }
+        stats.record(System.currentTimeMillis() / 1000);
+
+        // 0.改用雪花算法的业务, 直接在本地发号
+        if (generators.get(keyPrefix) == Generator.SNOWFLAKE) {
+            return snowflakeIdWorker.nextId();
+        }
+
         // 策略是基于redis进行自增长,不同业务都有一个不同的前缀key
 
         // Redis：负责“自增”并保住当前的“最高记录”。
         //  Java：负责“领走”号码，并拼接上时间戳变成最终的唯一 ID。
 
-        // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        // 1.生成时间戳(本地时间的秒数, 和原来的 LocalDateTime.now().toEpochSecond(UTC) 一致)
+        Day day = today();
+        long nowSecond = System.currentTimeMillis() / 1000 + day.offsetSeconds;
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd")); // 用:隔开,方便更精确的统计
-        // 2.2.自增长(用基本类型不用包装类,因为后面还要运算).这里飘黄是因为可能会出现空指针.实际不会,因为会自动创建key
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date); // increment自增函数,icr是自增的意思.
-        // 每天都修改该业务的key,解决上限问题,方便更精确的统计,并为全局id提供时间维度:
-        // (同一秒/同一天内，Redis 帮我们保证序列号不重复；而在不同天，由于 date 变了，即便序列号相同，拼接上前面的时间戳后，最终得到的 ID 依然是全球唯一的)
+        long count;
+        if (segmentSize <= 0) {
+            // 2.1.获取当前日期，精确到天(每天只格式化一次)
+            // 2.2.自增长(用基本类型不用包装类,因为后面还要运算).这里飘黄是因为可能会出现空指针.实际不会,因为会自动创建key
+            count = stringRedisTemplate.opsForValue().increment(key(keyPrefix, day)); // increment自增函数,icr是自增的意思.
+            // 每天都修改该业务的key,解决上限问题,方便更精确的统计,并为全局id提供时间维度:
+            // (同一秒/同一天内，Redis 帮我们保证序列号不重复；而在不同天，由于 date 变了，即便序列号相同，拼接上前面的时间戳后，最终得到的 ID 依然是全球唯一的)
+        } else {
+            // 2.3.号段模式: 从本地领到的号段里取, 号段用完才访问Redis
+            count = buffers.computeIfAbsent(keyPrefix, SequenceBuffer::new).next(day);
+        }
+        // 2.4.当天的序列号快用完时告警, 用完了不能再发, 否则会和后面的时间戳重复
+        if (count > MAX_COUNT - (long) (MAX_COUNT * headroomWarnRatio)) {
+            if (count > MAX_COUNT) {
+                throw new IllegalStateException("业务" + keyPrefix + "今天的序列号已经用完");
+            }
+            stats.warnHeadroom(keyPrefix, day.epochDay, count);
+        }
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 预热: 提前领好号段, 秒杀开始时第一个请求不用等Redis
+     * @param keyPrefix 业务前缀
+     */
+    public void warmUp(String keyPrefix) {
+        if (segmentSize > 0 && generators.get(keyPrefix) != Generator.SNOWFLAKE) {
+            buffers.computeIfAbsent(keyPrefix, SequenceBuffer::new).warmUp(today());
+        }
+    }
+
+    /**
+     * 解析id, 是 timestamp << COUNT_BITS | count 的逆运算; 雪花算法的id交给 {@link SnowflakeIdWorker} 解析
+     * @param id 生成的id
+     * @return 生成时间和序列号
+     */
+    public static DecodedId decode(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("无效的id: " + id);
+        }
+        if (SnowflakeIdWorker.isSnowflake(id)) {
+            return SnowflakeIdWorker.decode(id);
+        }
+        DecodedId decoded = new DecodedId();
+        decoded.setGenerator(Generator.REDIS);
+        // 时间戳是本地时间按UTC算的秒数, 反过来也按UTC还原
+        decoded.setTime(LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC));
+        decoded.setSequence(id & MAX_COUNT);
+        return decoded;
+    }
+
+    /**
+     * @return 每个业务的发号统计: 总数、最近一分钟每秒的发号数、当天剩余的序列号
+     */
+    public List<Map<String, Object>> stats() {
+        long nowSecond = System.currentTimeMillis() / 1000;
+        Day day = today();
+        List<Map<String, Object>> result = new ArrayList<>();
+        issueStats.forEach((keyPrefix, stats) -> {
+            Generator generator = generators.getOrDefault(keyPrefix, Generator.REDIS);
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("keyPrefix", keyPrefix);
+            item.put("generator", generator);
+            item.put("total", stats.total.sum());
+            // 不含还没走完的当前这一秒, 最早的在前
+            long[] perSecond = stats.perSecond(nowSecond - 1);
+            long sum = 0, peak = 0;
+            for (long c : perSecond) {
+                sum += c;
+                peak = Math.max(peak, c);
+            }
+            item.put("perSecond", perSecond);
+            item.put("avgPerSecond", sum / STATS_WINDOW_SECONDS);
+            item.put("peakPerSecond", peak);
+            if (generator == Generator.REDIS) {
+                // 以Redis里的计数为准, 包括其他节点发的和本节点领了还没发完的号段
+                String issued = stringRedisTemplate.opsForValue().get(key(keyPrefix, day));
+                long headroom = MAX_COUNT - (issued == null ? 0 : Long.parseLong(issued));
+                item.put("headroomToday", headroom);
+                item.put("headroomRatio", (double) headroom / MAX_COUNT);
+                // 按最近一分钟的平均速率, 还能撑多少秒
+                item.put("secondsToExhaustion", sum == 0 ? null : headroom * STATS_WINDOW_SECONDS / sum);
+            }
+            result.add(item);
+        });
+        return result;
+    }
+
+    private Day today() {
+        Day day = today;
+        long millis = System.currentTimeMillis();
+        long localSecond = millis / 1000 + day.offsetSeconds;
+        if (Math.floorDiv(localSecond, 86400L) != day.epochDay) {
+            // 跨天(或第一次调用), 重新计算时区偏移和日期字符串
+            int offset = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+            long epochDay = Math.floorDiv(millis / 1000 + offset, 86400L);
+            day = new Day(epochDay, offset, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            today = day;
+        }
+        return day;
+    }
+
+    private static String key(String keyPrefix, Day day) {
+        return "icr:" + keyPrefix + ":" + day.date;
+    }
+
+    /**
+     * 一个业务的发号统计. 每秒的计数放在环形数组里, 发号时只有CAS, 不创建对象
+     */
+    private static final class IssueStats {
+        private final LongAdder total = new LongAdder();
+        // 第i个槽位记录的是哪一秒, 以及这一秒的发号数
+        private final AtomicLongArray seconds = new AtomicLongArray(STATS_WINDOW_SECONDS);
+        private final AtomicLongArray counts = new AtomicLongArray(STATS_WINDOW_SECONDS);
+        // 已经告过警的日期, 每天只告警一次
+        private volatile long warnedDay = Long.MIN_VALUE;
+
+        private void record(long second) {
+            int i = (int) (second % STATS_WINDOW_SECONDS);
+            long slotSecond = seconds.get(i);
+            // 槽位还是一分钟前的, 抢到的线程清零. 清零前别的线程加上的几个会丢掉, 统计允许这点误差
+            if (slotSecond != second && seconds.compareAndSet(i, slotSecond, second)) {
+                counts.set(i, 0);
+            }
+            counts.incrementAndGet(i);
+            total.increment();
+        }
+
+        private long[] perSecond(long lastSecond) {
+            long[] result = new long[STATS_WINDOW_SECONDS];
+            for (int k = 0; k < STATS_WINDOW_SECONDS; k++) {
+                long second = lastSecond - STATS_WINDOW_SECONDS + 1 + k;
+                int i = (int) (second % STATS_WINDOW_SECONDS);
+                result[k] = seconds.get(i) == second ? counts.get(i) : 0;
+            }
+            return result;
+        }
+
+        private void warnHeadroom(String keyPrefix, long epochDay, long count) {
+            if (warnedDay != epochDay) {
+                warnedDay = epochDay;
+                log.warn("业务{}今天的id序列号已经发到{}, 只剩{}个", keyPrefix, count, MAX_COUNT - count);
+            }
+        }
+    }
+
+    /**
+     * 一天的日期信息
+     */
+    private static final class Day {
+        private final long epochDay;
+        private final int offsetSeconds;
+        private final String date;
+
+        private Day(long epochDay, int offsetSeconds, String date) {
+            this.epochDay = epochDay;
+            this.offsetSeconds = offsetSeconds;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 从Redis领到的一段序列号 [cursor, end]
+     */
+    private static final class Segment {
+        private final long epochDay;
+        private final long end;
+        // 用到这个序列号时触发预取
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        private Segment(long epochDay, long start, long end, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段: 当前在用的号段 + 预取好的下一段
+     */
+    private final class SequenceBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment prefetched;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        private SequenceBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(Day day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.epochDay == day.epochDay) {
+                    // 1.在当前号段里取, 只有一次CAS, 不创建对象
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.end) {
+                        // 2.用到80%时异步预取下一段, 只会触发一次
+                        if (value == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                // 3.号段用完了或者跨天了, 换下一段
+                switchSegment(segment, day);
+            }
+        }
+
+        private void warmUp(Day day) {
+            Segment segment = current;
+            if (segment == null || segment.epochDay != day.epochDay) {
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, Day day) {
+            // 别的线程已经换过了
+            if (current != exhausted) {
+                return;
+            }
+            Segment next = prefetched;
+            prefetched = null;
+            // 预取的号段是同一天的才能用, 否则同步领一段
+            current = next != null && next.epochDay == day.epochDay ? next : lease(day);
+        }
+
+        private void prefetch(Day day) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            PREFETCH_EXECUTOR.submit(() -> {
+                try {
+                    prefetched = lease(day);
+                } catch (Exception e) {
+                    // 预取失败, 号段用完时再同步领
+                    log.error("预取id号段失败, keyPrefix={}", keyPrefix, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        private Segment lease(Day day) {
+            // INCRBY icr:order:2026:01:12 1000, 领到 [end - 999, end]
+            Long end = stringRedisTemplate.opsForValue().increment(key(keyPrefix, day), segmentSize);
+            if (end == null) {
+                throw new IllegalStateException("领取id号段失败: " + keyPrefix);
+            }
+            long start = end - segmentSize + 1;
+            return new Segment(day.epochDay, start, end, start + (long) (segmentSize * PREFETCH_RATIO));
+        }
+    }
 //    public static void main(String[] args){
 //        LocalDateTime time = LocalDateTime.of(2026, 1, 12, 0,0,0);
 //        long second = time.toEpochSecond(ZoneOffset.UTC);
 //        System.out.println(second);
 //    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 创建业务里用的分布式锁: 本地锁 + 可重入的Redis锁(看门狗续期, 释放时通知等待者), 以及读写锁
+ */
+@Component
+public class RedisLockFactory {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockWatchdog lockWatchdog;
+    private final LockReleaseSubscriber lockReleaseSubscriber;
+    private final LocalLockRegistry localLockRegistry;
+
+    public RedisLockFactory(StringRedisTemplate stringRedisTemplate, LockWatchdog lockWatchdog,
+                            LockReleaseSubscriber lockReleaseSubscriber, LocalLockRegistry localLockRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockWatchdog = lockWatchdog;
+        this.lockReleaseSubscriber = lockReleaseSubscriber;
+        this.localLockRegistry = localLockRegistry;
+    }
+
+    /**
+     * @param name 锁的名字, Redis里的key是 lock:{name}
+     * @return 锁对象, 和SimpleRedisLock一样每次加锁新建一个
+     */
+    public ILock getLock(String name) {
+        return new CoalescingLock(name,
+                new RedisReentrantLock(name, stringRedisTemplate, lockWatchdog, lockReleaseSubscriber),
+                localLockRegistry);
+    }
+
+    /**
+     * @param name 锁的名字, Redis里的key是 lock:rw:{name}
+     * @return 读写锁对象
+     */
+    public RedisReadWriteLock getReadWriteLock(String name) {
+        return new RedisReadWriteLock(name, stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+    }
+}
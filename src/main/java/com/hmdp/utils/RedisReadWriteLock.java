@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式读写锁: 多个读者可以同时持有读锁, 写锁和其他任何锁互斥.
+ * 锁是一个hash: mode是读/写模式, 其他field是持有者(UUID + 线程id) -> 重入次数, 读者数就是field数.
+ * 写优先: 写者拿不到锁时会留一个等待标记, 之后新来的读者不能再进入, 已经持有读锁的读者释放完写者就能拿到.
+ * 每个读者在一个zset里有自己的到期时间(Redis的时钟), 写者加锁前先清掉到期的读者,
+ * 读者所在的节点宕机后最多一个有效期写者就能拿到锁, 不会因为其他读者一直续期整个key而永远等下去.
+ * 持有期间由 {@link LockWatchdog} 续期; 最后一个持有者释放时发通知, 等待的线程不用轮询.
+ * 持有读锁的线程不能再加写锁(不支持升级), 持有写锁的线程可以再加读锁.
+ */
+public class RedisReadWriteLock {
+
+    private static final String KEY_PREFIX = "lock:rw:";
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    // 写者等待标记的有效期, 等待中的写者每次醒来都会刷新
+    private static final long WRITER_WAIT_MILLIS = 2000L;
+
+    private static final DefaultRedisScript<Long> READ_LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> WRITE_LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        READ_LOCK_SCRIPT = new DefaultRedisScript<>();
+        READ_LOCK_SCRIPT.setLocation(new ClassPathResource("rw_read_lock.lua"));
+        READ_LOCK_SCRIPT.setResultType(Long.class);
+        WRITE_LOCK_SCRIPT = new DefaultRedisScript<>();
+        WRITE_LOCK_SCRIPT.setLocation(new ClassPathResource("rw_write_lock.lua"));
+        WRITE_LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("rw_unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String key;
+    private final String readersKey;
+    private final List<String> keys;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockWatchdog watchdog;
+    private final LockReleaseSubscriber releaseSubscriber;
+    private final ILock readLock = new Lock(false);
+    private final ILock writeLock = new Lock(true);
+
+    public RedisReadWriteLock(String name, StringRedisTemplate stringRedisTemplate,
+                              LockWatchdog watchdog, LockReleaseSubscriber releaseSubscriber) {
+        this.key = KEY_PREFIX + name;
+        this.readersKey = key + ":readers";
+        this.keys = Arrays.asList(key, key + ":writer-waiting", readersKey);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.watchdog = watchdog;
+        this.releaseSubscriber = releaseSubscriber;
+    }
+
+    public ILock readLock() {
+        return readLock;
+    }
+
+    public ILock writeLock() {
+        return writeLock;
+    }
+
+    private class Lock implements ILock {
+        private final boolean write;
+
+        private Lock(boolean write) {
+            this.write = write;
+        }
+
+        @Override
+        public boolean tryLock(long timeoutSec) {
+            return tryAcquire(timeoutSec * 1000) == null;
+        }
+
+        @Override
+        public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+            long leaseMillis = unit.toMillis(leaseTime);
+            Long ttl = tryAcquire(leaseMillis);
+            if (ttl == null) {
+                return true;
+            }
+            long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+            releaseSubscriber.join(key);
+            try {
+                while (true) {
+                    // 登记之后再试一次, 写者每次重试都会刷新等待标记
+                    ttl = tryAcquire(leaseMillis);
+                    if (ttl == null) {
+                        return true;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    long wait = ttl >= 0 ? Math.min(ttl, remaining) : remaining;
+                    // 写者要在等待标记过期前醒来刷新, 否则新的读者又会进来
+                    if (write) {
+                        wait = Math.min(wait, WRITER_WAIT_MILLIS / 2);
+                    }
+                    releaseSubscriber.await(key, wait);
+                }
+            } finally {
+                releaseSubscriber.leave(key);
+            }
+        }
+
+        @Override
+        public void unlock() {
+            String owner = owner();
+            watchdog.unwatch(key, owner);
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Arrays.asList(key, readersKey),
+                    owner, LockReleaseSubscriber.channel(key));
+        }
+
+        /**
+         * @return null代表获取成功, 否则是需要等待的时间(毫秒)
+         */
+        private Long tryAcquire(long leaseMillis) {
+            String owner = owner();
+            Long result = write
+                    ? stringRedisTemplate.execute(WRITE_LOCK_SCRIPT, keys,
+                            owner, String.valueOf(leaseMillis), String.valueOf(WRITER_WAIT_MILLIS))
+                    : stringRedisTemplate.execute(READ_LOCK_SCRIPT, keys,
+                            owner, String.valueOf(leaseMillis));
+            if (result == null || result != -1L) {
+                return result == null ? 0L : result;
+            }
+            if (write) {
+                watchdog.watch(key, owner, leaseMillis);
+            } else {
+                watchdog.watchReader(key, readersKey, owner, leaseMillis);
+            }
+            return null;
+        }
+    }
+
+    private static String owner() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+}
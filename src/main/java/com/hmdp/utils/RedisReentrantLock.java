@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可重入的分布式锁. 锁是一个hash: field是持有者(UUID + 线程id), value是重入次数,
+ * 加锁和释放都用Lua脚本保证原子性. 持有期间由 {@link LockWatchdog} 续期,
+ * 所以有效期只需要覆盖"节点宕机后多久释放", 不需要覆盖业务执行时间.
+ * 等待模式下拿不到锁的线程不会轮询, 而是等 {@link LockReleaseSubscriber} 收到释放通知再去抢.
+ * 每次新的持有都会分配一个单调递增的fencing token, 写入时带给被保护的资源, 由资源拒绝比见过的最大token小的写入.
+ */
+public class RedisReentrantLock implements ILock {
+
+    private static final String KEY_PREFIX = "lock:";
+    private static final String FENCE_SEQ_KEY = "lock:fence:seq";
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    // 没有加过锁就调用unlock时, 重置有效期用的默认值
+    private static final long DEFAULT_TTL_MILLIS = 30_000L;
+
+    private static final DefaultRedisScript<List> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_lock.lua"));
+        LOCK_SCRIPT.setResultType(List.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String key;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockWatchdog watchdog;
+    private final LockReleaseSubscriber releaseSubscriber;
+    // 最近一次加锁用的有效期, 释放(重入的内层)时用它重置有效期
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private volatile long fencingToken;
+
+    public RedisReentrantLock(String name, StringRedisTemplate stringRedisTemplate,
+                              LockWatchdog watchdog, LockReleaseSubscriber releaseSubscriber) {
+        this.key = KEY_PREFIX + name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.watchdog = watchdog;
+        this.releaseSubscriber = releaseSubscriber;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return tryAcquire(timeoutSec * 1000) == null;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long leaseMillis = unit.toMillis(leaseTime);
+        // 1.先试一次, 大多数时候没有竞争
+        Long ttl = tryAcquire(leaseMillis);
+        if (ttl == null) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        // 2.登记为等待者, 之后锁一释放就会被唤醒
+        releaseSubscriber.join(key);
+        try {
+            while (true) {
+                // 3.登记之后再试一次, 防止在登记之前锁就已经释放了
+                ttl = tryAcquire(leaseMillis);
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 4.等释放通知; 持有者宕机时没有通知, 最多等到锁过期
+                releaseSubscriber.await(key, ttl >= 0 ? Math.min(ttl, remaining) : remaining);
+            }
+        } finally {
+            releaseSubscriber.leave(key);
+        }
+    }
+
+    @Override
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    @Override
+    public boolean checkFencingToken(long token) {
+        // 一次HGET: 锁还在, 并且还是这次持有分配的token
+        Object fence = stringRedisTemplate.opsForHash().get(key, "fence");
+        return token > 0 && fence != null && String.valueOf(token).equals(fence.toString());
+    }
+
+    /**
+     * @param name 锁的名字
+     * @return 锁在Redis里的key
+     */
+    public static String keyOf(String name) {
+        return KEY_PREFIX + name;
+    }
+
+    /**
+     * 执行加锁脚本
+     * @return null代表获取成功, 否则是锁的剩余有效期(毫秒)
+     */
+    private Long tryAcquire(long leaseMillis) {
+        String owner = owner();
+        // 获取锁, 返回{1, fencing token}代表成功, {0, 锁的剩余有效期}代表失败
+        List<?> result = stringRedisTemplate.execute(LOCK_SCRIPT, Arrays.asList(key, FENCE_SEQ_KEY),
+                owner, String.valueOf(leaseMillis));
+        if (result == null || result.size() < 2) {
+            return 0L;
+        }
+        long value = ((Number) result.get(1)).longValue();
+        if (((Number) result.get(0)).longValue() != 1L) {
+            return value;
+        }
+        // 获取成功, 记下token, 交给看门狗续期
+        fencingToken = value;
+        ttlMillis = leaseMillis;
+        watchdog.watch(key, owner, leaseMillis);
+        return null;
+    }
+
+    @Override
+    public void unlock() {
+        String owner = owner();
+        // 不管锁是否还属于自己, 本线程这一层的续期都要停掉
+        watchdog.unwatch(key, owner);
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key),
+                owner, String.valueOf(ttlMillis), LockReleaseSubscriber.channel(key));
+    }
+
+    private static String owner() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+}
@@ -0,0 +1,330 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀订单的本地溢写日志: 数据库变慢或者出故障时, 订单队列先把订单追加到这里, 数据库恢复后再按追加的顺序重放.
+ * 日志只是本地的缓冲, 不是订单唯一的副本: 溢写的消息在Redis Stream里不ACK也不删除, 重放成功后才ACK,
+ * 所以这台机器的磁盘或者整台机器坏了, 其他节点也能从pending-list里认领这些订单.
+ * 重放用的是 INSERT IGNORE, 重复重放同一条订单不会多出订单和多扣库存.
+ * <p>
+ * 文件通过mmap映射到内存, 大小固定(有界), 是一个环形缓冲区. 格式:
+ * 头部32字节: 读序号(long) + 写序号(long) + 格式版本(int) + 容量(int) + 保留;
+ * 之后每条订单48字节: 订单id + 用户id + 优惠券id + 下单时间(毫秒) + Stream消息id(毫秒 + 序号).
+ * 读写序号只增不减, 第n条订单放在第 n % capacity 个位置, 每重放一批就腾出一批的空间.
+ * <p>
+ * 追加时不为每条订单创建对象: 消息id的索引是一个int数组的开放寻址哈希表, 只存订单的位置, 比较时从日志里读消息id.
+ * 刷盘(msync, SSD上通常是毫秒级)不占着日志的锁, 同时等刷盘的几批订单合并成一次force.
+ */
+@Slf4j
+@Component
+public class SeckillOrderJournal {
+
+    /**
+     * 日志里的一条订单, 带着它在Redis Stream里的消息id
+     */
+    public static final class Entry {
+        private final VoucherOrder order;
+        private final RecordId recordId;
+
+        public Entry(VoucherOrder order, RecordId recordId) {
+            this.order = order;
+            this.recordId = recordId;
+        }
+
+        public VoucherOrder getOrder() {
+            return order;
+        }
+
+        public RecordId getRecordId() {
+            return recordId;
+        }
+    }
+
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 48;
+    private static final int READ_POS_OFFSET = 0;
+    private static final int WRITE_POS_OFFSET = 8;
+    private static final int VERSION_OFFSET = 16;
+    private static final int CAPACITY_OFFSET = 20;
+    private static final int VERSION = 2;
+    // 时区规则只取一次, 换算下单时间时不用每条订单查时区、创建ZonedDateTime
+    private static final ZoneRules ZONE_RULES = ZoneId.systemDefault().getRules();
+
+    /**
+     * 日志文件路径, 为空时按 主机名-端口 生成, 保证同一台机器上的多个实例不会共用一个文件
+     */
+    @Value("${hmdp.seckill.order-journal.path:}")
+    private String path;
+    @Value("${server.port:8080}")
+    private int serverPort;
+    /**
+     * 最多能存多少条订单, 文件大小 = 32 + 48 * capacity 字节
+     */
+    @Value("${hmdp.seckill.order-journal.capacity:1000000}")
+    private int capacity;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    // 下一条要重放的订单序号, 和下一条要追加的订单序号
+    private long readPos;
+    private long writePos;
+    // 日志里所有订单的Stream消息id的索引, 处理pending-list时跳过这些已经溢写的消息.
+    // 线性探测的哈希表, 存 订单位置 + 1, 0代表空; 表长是容量的2到4倍, 默认容量下8MB
+    private int[] index;
+    private int indexMask;
+    // 已经刷盘的写序号, 只在forceLock里读写
+    private long forcedPos;
+    private final Object forceLock = new Object();
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (StrUtil.isBlank(path)) {
+            String host = StrUtil.blankToDefault(NetUtil.getLocalHostName(), "localhost");
+            path = "data/seckill-orders-" + host + "-" + serverPort + ".journal";
+        }
+        long size = HEADER_SIZE + (long) RECORD_SIZE * capacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("订单日志容量太大: " + capacity);
+        }
+        File journal = new File(path);
+        File dir = journal.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录: " + dir);
+        }
+        file = new RandomAccessFile(journal, "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        // 1.上次没重放完的订单从文件头里恢复出来
+        readPos = buffer.getLong(READ_POS_OFFSET);
+        writePos = buffer.getLong(WRITE_POS_OFFSET);
+        if (readPos < 0 || writePos < readPos) {
+            throw new IllegalStateException("订单日志文件已损坏: " + journal.getAbsolutePath());
+        }
+        if (readPos == writePos) {
+            // 2.新文件或者已经重放完, 按当前的格式和容量重新初始化
+            readPos = 0;
+            writePos = 0;
+            buffer.putLong(READ_POS_OFFSET, 0L);
+            buffer.putLong(WRITE_POS_OFFSET, 0L);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.force();
+        } else if (buffer.getInt(VERSION_OFFSET) != VERSION || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+            // 3.还有订单没重放, 格式或容量变了就没法按位置读出来
+            throw new IllegalStateException("订单日志里还有没重放的订单, 但格式版本或容量和配置不一致: "
+                    + journal.getAbsolutePath());
+        }
+        index = new int[Integer.highestOneBit(capacity) << 2];
+        indexMask = index.length - 1;
+        for (long pos = readPos; pos < writePos; pos++) {
+            indexAdd(pos);
+        }
+        forcedPos = writePos;
+        if (writePos > readPos) {
+            log.warn("订单日志{}里有{}条上次没重放完的订单", journal.getAbsolutePath(), writePos - readPos);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * 追加一批订单, 刷盘之后才返回
+     * @param entries 订单和它们的Stream消息id
+     * @return false代表日志满了, 一条都没有写入
+     */
+    public boolean append(List<Entry> entries) {
+        long end;
+        synchronized (this) {
+            if (writePos - readPos + entries.size() > capacity) {
+                return false;
+            }
+            // 1.先写订单, 再移动写序号, 写到一半宕机的订单不会被读到
+            for (Entry entry : entries) {
+                VoucherOrder order = entry.getOrder();
+                String recordId = entry.getRecordId().getValue();
+                int dash = recordId.indexOf('-');
+                long pos = writePos++;
+                int offset = offset(pos);
+                buffer.putLong(offset, order.getId());
+                buffer.putLong(offset + 8, order.getUserId());
+                buffer.putLong(offset + 16, order.getVoucherId());
+                buffer.putLong(offset + 24, order.getCreateTime() == null ? 0L : toEpochMilli(order.getCreateTime()));
+                buffer.putLong(offset + 32, parseLong(recordId, 0, dash));
+                buffer.putLong(offset + 40, parseLong(recordId, dash + 1, recordId.length()));
+                indexAdd(pos);
+            }
+            buffer.putLong(WRITE_POS_OFFSET, writePos);
+            end = writePos;
+        }
+        // 2.刷盘, 不占着日志的锁. 别的线程已经刷过这一批时不用再刷
+        synchronized (forceLock) {
+            if (forcedPos < end) {
+                // 这次force也会刷到在它之前追加的其他订单
+                long pos;
+                synchronized (this) {
+                    pos = writePos;
+                }
+                buffer.force();
+                forcedPos = pos;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按追加的顺序读出最前面的一批订单, 不移动读序号, 处理完后调用 {@link #commit(int)}
+     * @param max 最多读多少条
+     * @return 订单, 没有积压时为空
+     */
+    public synchronized List<Entry> peek(int max) {
+        int n = (int) Math.min(max, writePos - readPos);
+        List<Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int offset = offset(readPos + i);
+            VoucherOrder order = new VoucherOrder();
+            order.setId(buffer.getLong(offset));
+            order.setUserId(buffer.getLong(offset + 8));
+            order.setVoucherId(buffer.getLong(offset + 16));
+            long createTime = buffer.getLong(offset + 24);
+            if (createTime > 0) {
+                order.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(createTime), ZoneId.systemDefault()));
+            }
+            entries.add(new Entry(order, readRecordId(offset)));
+        }
+        return entries;
+    }
+
+    /**
+     * 前n条订单已经处理完(写入数据库或者进了死信队列), 移动读序号, 腾出它们的空间
+     * @param n 订单数
+     */
+    public void commit(int n) {
+        synchronized (this) {
+            long end = Math.min(readPos + n, writePos);
+            for (long pos = readPos; pos < end; pos++) {
+                indexRemove(pos);
+            }
+            readPos = end;
+            buffer.putLong(READ_POS_OFFSET, readPos);
+        }
+        // 这里宕机最多导致一批订单被重放两次, INSERT IGNORE 保证幂等
+        synchronized (forceLock) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * @param recordId Stream消息id
+     * @return true代表这条消息已经溢写到日志里, 等待重放
+     */
+    public boolean contains(RecordId recordId) {
+        String value = recordId.getValue();
+        int dash = value.indexOf('-');
+        if (dash <= 0) {
+            return false;
+        }
+        long millis = parseLong(value, 0, dash);
+        long sequence = parseLong(value, dash + 1, value.length());
+        synchronized (this) {
+            for (int i = slot(millis, sequence); index[i] != 0; i = (i + 1) & indexMask) {
+                int offset = HEADER_SIZE + (index[i] - 1) * RECORD_SIZE;
+                if (buffer.getLong(offset + 32) == millis && buffer.getLong(offset + 40) == sequence) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return 还没重放的订单数
+     */
+    public synchronized long size() {
+        return writePos - readPos;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    private RecordId readRecordId(int offset) {
+        return RecordId.of(buffer.getLong(offset + 32), buffer.getLong(offset + 40));
+    }
+
+    private int offset(long pos) {
+        return (int) (HEADER_SIZE + (pos % capacity) * RECORD_SIZE);
+    }
+
+    // 把第pos条订单的消息id加入索引
+    private void indexAdd(long pos) {
+        int offset = offset(pos);
+        int i = slot(buffer.getLong(offset + 32), buffer.getLong(offset + 40));
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = (int) (pos % capacity) + 1;
+    }
+
+    // 把第pos条订单的消息id移出索引. 线性探测不能直接清空, 要把后面探测链上的元素往前挪
+    private void indexRemove(long pos) {
+        int offset = offset(pos);
+        int value = (int) (pos % capacity) + 1;
+        int i = slot(buffer.getLong(offset + 32), buffer.getLong(offset + 40));
+        while (index[i] != value) {
+            i = (i + 1) & indexMask;
+        }
+        for (int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+            int other = HEADER_SIZE + (index[j] - 1) * RECORD_SIZE;
+            int home = slot(buffer.getLong(other + 32), buffer.getLong(other + 40));
+            // home在(i, j]之间的元素留在原地, 否则挪到空出来的i
+            boolean stay = i < j ? i < home && home <= j : i < home || home <= j;
+            if (!stay) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+
+    private int slot(long millis, long sequence) {
+        long h = (millis * 31 + sequence) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & indexMask;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.toEpochSecond(ZONE_RULES.getOffset(time)) * 1000 + time.getNano() / 1000000;
+    }
+
+    // 解析消息id "毫秒-序号" 中的一段, 不像 RecordId.getTimestamp() 那样每次split
+    private static long parseLong(String s, int begin, int end) {
+        long n = 0;
+        for (int i = begin; i < end; i++) {
+            n = n * 10 + (s.charAt(i) - '0');
+        }
+        return n;
+    }
+}
@@ -0,0 +1,484 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 基于Redis Stream的秒杀订单队列: seckill.lua 把订单XADD进stream.orders,
+ * 这里的N个消费者线程以消费者组的方式批量读取订单, 批量写库, 事务提交后才ACK.
+ * 没ACK的消息留在pending-list里, 启动时和出异常时都会重新处理, JVM重启也不会丢单.
+ * 数据库变慢或出故障时订单先溢写到本地日志 {@link SeckillOrderJournal}, 由单独的线程按顺序重放,
+ * 溢写的消息要等重放成功后才ACK. 每个节点定时写心跳, 只有心跳过期的节点的pending消息才会被其他节点认领,
+ * 所以节点活着时溢写的订单不会被别人抢走, 节点连同磁盘一起坏掉时订单也还在Redis里.
+ * 重放多次都失败的订单逐条重试, 数据库正常但还是写不进去的订单放进死信队列 stream.orders.dlq, 并打错误日志告警.
+ */
+@Slf4j
+@Component
+public class SeckillOrderQueue {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IVoucherOrderService voucherOrderService;
+    private final SeckillOrderStatus seckillOrderStatus;
+    private final SeckillOrderJournal seckillOrderJournal;
+
+    /**
+     * 消费者线程数. 每个线程阻塞读时会占住一个Redis连接, 注意不要超过连接池大小
+     */
+    @Value("${hmdp.seckill.order-queue.workers:2}")
+    private int workers;
+    /**
+     * 每次XREADGROUP最多读多少条, 也就是一次多行insert的最大行数
+     */
+    @Value("${hmdp.seckill.order-queue.batch-size:100}")
+    private int batchSize;
+    /**
+     * 其他消费者的消息超过这个时间没ACK, 就认为那个消费者挂了, 由当前消费者认领
+     */
+    @Value("${hmdp.seckill.order-queue.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+    /**
+     * 一批订单写库超过这个时间就认为数据库变慢了, 之后的订单先溢写到本地日志
+     */
+    @Value("${hmdp.seckill.order-journal.slow-commit-millis:1000}")
+    private long slowCommitMillis;
+    /**
+     * 数据库变慢或出错后, 多长时间内新订单都直接溢写, 期间由重放线程去试探数据库
+     */
+    @Value("${hmdp.seckill.order-journal.degrade-seconds:5}")
+    private long degradeSeconds;
+    /**
+     * 日志最前面的一批订单连续重放失败多少次后逐条重试, 找出写不进去的订单放进死信队列
+     */
+    @Value("${hmdp.seckill.order-journal.max-replay-attempts:5}")
+    private int maxReplayAttempts;
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private static final ExecutorService ORDER_QUEUE_EXECUTOR = Executors.newCachedThreadPool();
+    // 消费者名前缀用 主机名-端口, 保证同一个实例重启后还是同一批消费者, 能直接接着处理自己的pending-list,
+    // 同一台机器上的多个实例也不会共用消费者
+    private String consumerPrefix;
+    private volatile boolean running = true;
+    private volatile boolean groupCreated = false;
+    // 数据库被认为不可用的截止时间
+    private volatile long degradedUntil = 0L;
+
+    // 监控指标
+    private final LongAdder committedBatches = new LongAdder();
+    private final LongAdder committedOrders = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder commitMillisTotal = new LongAdder();
+    private final AtomicLong lastBatchSize = new AtomicLong();
+    private final AtomicLong lastCommitMillis = new AtomicLong();
+    private final AtomicLong maxCommitMillis = new AtomicLong();
+    private final LongAdder spilledOrders = new LongAdder();
+    private final LongAdder replayedOrders = new LongAdder();
+    private final LongAdder deadLetterOrders = new LongAdder();
+
+    public SeckillOrderQueue(StringRedisTemplate stringRedisTemplate, IVoucherOrderService voucherOrderService,
+                             SeckillOrderStatus seckillOrderStatus, SeckillOrderJournal seckillOrderJournal) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.voucherOrderService = voucherOrderService;
+        this.seckillOrderStatus = seckillOrderStatus;
+        this.seckillOrderJournal = seckillOrderJournal;
+    }
+
+    @PostConstruct
+    private void init() {
+        consumerPrefix = StrUtil.blankToDefault(NetUtil.getLocalHostName(), "localhost") + "-" + serverPort;
+        heartbeat();
+        // 类初始化完毕就开始消费订单(秒杀随时可能开始)
+        for (int i = 0; i < workers; i++) {
+            ORDER_QUEUE_EXECUTOR.submit(new OrderWorker(consumerPrefix + "-" + i));
+        }
+        ORDER_QUEUE_EXECUTOR.submit(this::replayJournal);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        ORDER_QUEUE_EXECUTOR.shutdownNow();
+        ORDER_QUEUE_EXECUTOR.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private class OrderWorker implements Runnable {
+        private final String name;
+
+        OrderWorker(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            // 1.启动时先把上次没ACK的消息处理掉(宕机重启后的恢复)
+            handlePendingList(name);
+            while (running) {
+                try {
+                    // 2.获取消息队列中的订单 XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, name),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.lastConsumed()));
+                    // 3.没有消息, 继续下一次循环
+                    if (records == null || records.isEmpty()) {
+                        continue;
+                    }
+                    // 4.有消息, 批量写库并ACK
+                    handleRecords(records);
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    // 5.出异常的消息还在pending-list里, 去处理pending-list
+                    handlePendingList(name);
+                }
+            }
+        }
+    }
+
+    private void handlePendingList(String consumer) {
+        int failures = 0;
+        // 溢写到日志里的消息会一直留在pending-list里, 所以要分页往后读, 不能每次都从0开始
+        String offset = "0";
+        while (running) {
+            try {
+                // 1.确保消费者组存在, 并认领挂掉的消费者留下的消息
+                createGroupIfAbsent();
+                claimIdleRecords(consumer);
+                // 2.获取pending-list中的订单 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders 0
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumer),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.from(offset)));
+                // 3.pending-list里没有消息了, 结束
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                // 4.有消息, 批量写库并ACK, 成功后从这一页的最后一条往后读
+                handleRecords(records);
+                offset = records.get(records.size() - 1).getId().getValue();
+                failures = 0;
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常", e);
+                // 数据库或Redis出问题时不要空转, 逐步退避, 最多等5秒
+                failures++;
+                try {
+                    Thread.sleep(Math.min(20L << Math.min(failures, 8), 5000L));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        // 1.解析订单. 已经溢写到日志里的消息跳过(等重放成功后ACK), 已经被XDEL的消息value为空, 直接ACK掉
+        List<SeckillOrderJournal.Entry> entries = new ArrayList<>(records.size());
+        List<RecordId> ids = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            if (seckillOrderJournal.contains(record.getId())) {
+                continue;
+            }
+            ids.add(record.getId());
+            Map<Object, Object> value = record.getValue();
+            if (value != null && !value.isEmpty()) {
+                entries.add(new SeckillOrderJournal.Entry(toVoucherOrder(value), record.getId()));
+            }
+        }
+        List<VoucherOrder> orders = entries.stream().map(SeckillOrderJournal.Entry::getOrder).collect(Collectors.toList());
+        // 2.数据库正常时批量写库, 方法返回时事务已经提交; 数据库慢的这段时间里溢写到本地日志
+        long begin = System.currentTimeMillis();
+        Set<Long> failed = Collections.emptySet();
+        boolean spilled = false;
+        if (!orders.isEmpty()) {
+            if (isDegraded()) {
+                spilled = seckillOrderJournal.append(entries);
+            }
+            if (!spilled) {
+                try {
+                    failed = voucherOrderService.createVoucherOrders(orders);
+                } catch (RuntimeException e) {
+                    failedBatches.increment();
+                    degrade();
+                    // 日志也满了, 消息留在pending-list里稍后重试
+                    if (!seckillOrderJournal.append(entries)) {
+                        throw e;
+                    }
+                    log.warn("订单写库失败, {}条订单溢写到本地日志", orders.size(), e);
+                    spilled = true;
+                }
+            }
+        }
+        long cost = System.currentTimeMillis() - begin;
+        if (!spilled && cost > slowCommitMillis) {
+            degrade();
+        }
+        if (spilled) {
+            // 3.溢写的订单不ACK, 留在pending-list里, 重放成功后再ACK; 状态还是PENDING, 重放时再更新
+            ids.removeIf(seckillOrderJournal::contains);
+            acknowledge(ids);
+            spilledOrders.add(orders.size());
+            return;
+        }
+        // 3.提交之后再ACK, 并把消息删掉, 这样XLEN就是还没落库的订单数
+        acknowledge(ids);
+        // 4.更新订单状态, 唤醒长轮询的客户端
+        updateStatus(orders, failed);
+        // 5.记录指标
+        committedBatches.increment();
+        committedOrders.add(orders.size());
+        commitMillisTotal.add(cost);
+        lastBatchSize.set(orders.size());
+        lastCommitMillis.set(cost);
+        maxCommitMillis.accumulateAndGet(cost, Math::max);
+    }
+
+    private boolean isDegraded() {
+        return System.currentTimeMillis() < degradedUntil;
+    }
+
+    private void acknowledge(List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        RecordId[] array = ids.toArray(new RecordId[0]);
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, array);
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM_KEY, array);
+    }
+
+    private void degrade() {
+        degradedUntil = System.currentTimeMillis() + degradeSeconds * 1000;
+    }
+
+    private void updateStatus(List<VoucherOrder> orders, Set<Long> failed) {
+        Map<Boolean, List<VoucherOrder>> created = orders.stream()
+                .collect(Collectors.partitioningBy(order -> !failed.contains(order.getId())));
+        seckillOrderStatus.update(created.get(true), created.get(false));
+    }
+
+    /**
+     * 重放线程: 按追加的顺序把本地日志里的订单写入数据库, 写库失败就退避后重试.
+     * 同一批连续失败 maxReplayAttempts 次后逐条重试, 避免一条坏订单堵住后面所有的订单
+     */
+    private void replayJournal() {
+        int failures = 0;
+        while (running) {
+            try {
+                // 1.没有积压, 等一会再看
+                List<SeckillOrderJournal.Entry> entries = seckillOrderJournal.peek(batchSize);
+                if (entries.isEmpty()) {
+                    Thread.sleep(1000);
+                    continue;
+                }
+                List<VoucherOrder> orders = entries.stream()
+                        .map(SeckillOrderJournal.Entry::getOrder).collect(Collectors.toList());
+                // 2.写库, 重复重放的订单会被 INSERT IGNORE 忽略. 失败太多次就逐条写, 写不进去的进死信队列
+                long begin = System.currentTimeMillis();
+                Set<Long> failed = failures >= maxReplayAttempts
+                        ? replayOneByOne(entries) : voucherOrderService.createVoucherOrders(orders);
+                long cost = System.currentTimeMillis() - begin;
+                // 3.写库成功后才ACK并删除Stream里的消息, 再移动读序号, 更新订单状态
+                acknowledge(entries.stream().map(SeckillOrderJournal.Entry::getRecordId).collect(Collectors.toList()));
+                seckillOrderJournal.commit(entries.size());
+                updateStatus(orders, failed);
+                replayedOrders.add(orders.size());
+                failures = 0;
+                // 重放得也很慢, 说明数据库还没恢复, 新订单继续溢写
+                if (cost > slowCommitMillis) {
+                    degrade();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("重放本地日志里的订单异常, 第{}次", failures + 1, e);
+                degrade();
+                failures++;
+                try {
+                    Thread.sleep(Math.min(20L << Math.min(failures, 8), 5000L));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐条写库. 一条都写不进去时先确认数据库是否可用, 不可用就抛异常等下次重试;
+     * 数据库可用还写不进去的订单放进死信队列, 打错误日志告警, 等人工处理
+     * @return 因为一人一单没能落库的订单id
+     */
+    private Set<Long> replayOneByOne(List<SeckillOrderJournal.Entry> entries) {
+        Set<Long> failed = new HashSet<>();
+        Map<SeckillOrderJournal.Entry, RuntimeException> poisoned = new LinkedHashMap<>();
+        for (SeckillOrderJournal.Entry entry : entries) {
+            try {
+                failed.addAll(voucherOrderService.createVoucherOrders(Collections.singletonList(entry.getOrder())));
+            } catch (RuntimeException e) {
+                poisoned.put(entry, e);
+            }
+        }
+        if (poisoned.size() == entries.size()) {
+            // 数据库挂了的时候这里会抛异常
+            voucherOrderService.getById(0L);
+        }
+        poisoned.forEach((entry, e) -> {
+            VoucherOrder order = entry.getOrder();
+            Map<String, String> value = new HashMap<>();
+            value.put("id", order.getId().toString());
+            value.put("userId", order.getUserId().toString());
+            value.put("voucherId", order.getVoucherId().toString());
+            if (order.getCreateTime() != null) {
+                value.put("createTime", String.valueOf(
+                        order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+            }
+            value.put("error", String.valueOf(e.getMessage()));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, value);
+            deadLetterOrders.increment();
+            log.error("订单{}多次写库失败, 已放进死信队列{}, 需要人工处理", order.getId(), SECKILL_ORDER_DLQ_KEY, e);
+        });
+        return failed;
+    }
+
+    /**
+     * 心跳: 本节点还活着, 其他节点不要认领本节点pending-list里的消息(包括已经溢写到本地日志的)
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-queue.heartbeat-interval-ms:10000}")
+    public void heartbeat() {
+        try {
+            stringRedisTemplate.opsForValue().set(SECKILL_ORDER_CONSUMER_KEY + consumerPrefix, "1",
+                    Math.max(claimIdleSeconds, 30), TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.error("订单消费者心跳失败", e);
+        }
+    }
+
+    private VoucherOrder toVoucherOrder(Map<Object, Object> value) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(Long.valueOf(value.get("id").toString()));
+        voucherOrder.setUserId(Long.valueOf(value.get("userId").toString()));
+        voucherOrder.setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+        Object createTime = value.get("createTime");
+        if (createTime != null) {
+            voucherOrder.setCreateTime(LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(Long.parseLong(createTime.toString())), ZoneId.systemDefault()));
+        }
+        return voucherOrder;
+    }
+
+    private void createGroupIfAbsent() {
+        if (groupCreated) {
+            return;
+        }
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                    SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 组已经存在(BUSYGROUP)也算成功, 其他异常继续往外抛
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")
+                    && (e.getCause() == null || !String.valueOf(e.getCause().getMessage()).contains("BUSYGROUP"))) {
+                throw e;
+            }
+        }
+        groupCreated = true;
+    }
+
+    private void claimIdleRecords(String consumer) {
+        // XPENDING stream.orders g1 - + 1000, 找出其他消费者手里空闲太久的消息
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, Range.unbounded(), 1000);
+        Duration minIdle = Duration.ofSeconds(claimIdleSeconds);
+        // 心跳还在的节点没挂, 它的消息可能已经溢写到本地日志等着重放, 不能认领
+        Map<String, Boolean> alive = new HashMap<>();
+        List<RecordId> ids = pending.stream()
+                .filter(p -> !consumer.equals(p.getConsumerName()))
+                .filter(p -> p.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0)
+                .filter(p -> !alive.computeIfAbsent(prefixOf(p.getConsumerName()), prefix ->
+                        Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_CONSUMER_KEY + prefix))))
+                .map(PendingMessage::getId)
+                .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return;
+        }
+        // XCLAIM stream.orders g1 consumer minIdle id...
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.xClaimJustId(SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_ORDER_GROUP, consumer,
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+        log.warn("消费者{}认领了{}条超时未ACK的订单消息", consumer, claimed == null ? 0 : claimed.size());
+    }
+
+    private static String prefixOf(String consumer) {
+        // 消费者名是 前缀-序号
+        int i = consumer.lastIndexOf('-');
+        return i < 0 ? consumer : consumer.substring(0, i);
+    }
+
+    /**
+     * 队列监控指标: 队列深度(还没落库的订单), pending数量, 批大小, 提交耗时
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM_KEY));
+        try {
+            stats.put("pending", stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP).getTotalPendingMessages());
+        } catch (Exception e) {
+            // 消费者组还没创建
+            stats.put("pending", 0L);
+        }
+        long batches = committedBatches.sum();
+        stats.put("workers", workers);
+        stats.put("committedBatches", batches);
+        stats.put("committedOrders", committedOrders.sum());
+        stats.put("failedBatches", failedBatches.sum());
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("avgBatchSize", batches == 0 ? 0 : committedOrders.sum() / (double) batches);
+        stats.put("lastCommitMillis", lastCommitMillis.get());
+        stats.put("avgCommitMillis", batches == 0 ? 0 : commitMillisTotal.sum() / (double) batches);
+        stats.put("maxCommitMillis", maxCommitMillis.get());
+        stats.put("journalBacklog", seckillOrderJournal.size());
+        stats.put("journalPath", seckillOrderJournal.getPath());
+        stats.put("spilledOrders", spilledOrders.sum());
+        stats.put("replayedOrders", replayedOrders.sum());
+        stats.put("deadLetterOrders", deadLetterOrders.sum());
+        stats.put("degraded", System.currentTimeMillis() < degradedUntil);
+        return stats;
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 异步秒杀订单的状态: 下单成功时由 seckill.lua (分片库存时由 SeckillStockManager) 记为 PENDING, 消费者落库后改成 CREATED 或 FAILED.
+ * 状态按 用户id + 订单id 存放, 只能查到自己的订单.
+ * 状态变化会通过Redis发布订阅广播, 每个节点唤醒本地正在长轮询这个订单的请求.
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus implements MessageListener {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    // 正在长轮询的请求, key: 订单id
+    private final Map<Long, List<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单状态的key, 带上用户id, 别人的订单id查不到状态
+     */
+    public static String key(Long userId, Long orderId) {
+        return SECKILL_ORDER_STATUS_KEY + userId + ":" + orderId;
+    }
+
+    /**
+     * 查询Redis里的订单状态
+     * @param userId 下单的用户id
+     * @param orderId 订单id
+     * @return 订单状态, 状态已过期、不是异步订单或者不是这个用户的订单时返回null
+     */
+    public String get(Long userId, Long orderId) {
+        return stringRedisTemplate.opsForValue().get(key(userId, orderId));
+    }
+
+    /**
+     * 落库完成后批量更新订单状态(一次pipeline), 并广播给所有节点
+     * @param created 已经落库的订单
+     * @param failed 没能落库的订单
+     */
+    public void update(Collection<VoucherOrder> created, Collection<VoucherOrder> failed) {
+        if (created.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        // 消息格式: 订单id=状态,订单id=状态...
+        StringJoiner message = new StringJoiner(",");
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : created) {
+                conn.setEx(key(order.getUserId(), order.getId()), SECKILL_ORDER_STATUS_TTL, CREATED);
+                message.add(order.getId() + "=" + CREATED);
+            }
+            for (VoucherOrder order : failed) {
+                conn.setEx(key(order.getUserId(), order.getId()), SECKILL_ORDER_STATUS_TTL, FAILED);
+                message.add(order.getId() + "=" + FAILED);
+            }
+            conn.publish(SECKILL_ORDER_STATUS_CHANNEL, message.toString());
+            return null;
+        });
+    }
+
+    /**
+     * 登记一个长轮询请求, 订单状态变化或超时时结束. 调用前要先确认订单属于当前用户
+     * @param orderId 订单id
+     * @param result 长轮询的结果
+     */
+    public void await(Long orderId, DeferredResult<Result> result) {
+        waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(result);
+        // 超时或客户端断开后移除, 避免泄漏
+        result.onCompletion(() -> waiters.computeIfPresent(orderId, (id, list) -> {
+            list.remove(result);
+            return list.isEmpty() ? null : list;
+        }));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String item : StrUtil.split(body, ',')) {
+            int i = item.indexOf('=');
+            if (i < 0) {
+                continue;
+            }
+            try {
+                Long orderId = Long.valueOf(item.substring(0, i));
+                List<DeferredResult<Result>> list = waiters.remove(orderId);
+                if (list != null) {
+                    String status = item.substring(i + 1);
+                    list.forEach(result -> result.setResult(Result.ok(status)));
+                }
+            } catch (NumberFormatException e) {
+                log.error("无法识别的订单状态消息: {}", item);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 秒杀下单接口的限流拦截器, 被限流的请求在进入 VoucherOrderServiceImpl 之前就返回.
+ * 和LoginInterceptor一样是手动new的, 通过构造函数注入限流器
+ */
+public class SeckillRateLimitInterceptor implements HandlerInterceptor {
+
+    private final SeckillRateLimiter seckillRateLimiter;
+
+    public SeckillRateLimitInterceptor(SeckillRateLimiter seckillRateLimiter) {
+        this.seckillRateLimiter = seckillRateLimiter;
+    }
+
+    @Override // controller的前置拦截
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1. 从路径 /voucher-order/seckill/{id} 里取出优惠券id
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String id = pathVariables == null ? null : pathVariables.get("id");
+        if (id == null) {
+            return true;
+        }
+        // 2. id不是数字, 返回400, 不要让 Long.valueOf 抛异常变成500
+        if (!NumberUtil.isLong(id)) {
+            return reject(response, 400, "优惠券id不合法"); // 400请求参数错误的意思
+        }
+        // 3. 取令牌, 取到就放行
+        if (seckillRateLimiter.tryAcquire(Long.valueOf(id))) {
+            return true;
+        }
+        // 4. 取不到令牌, 返回429
+        return reject(response, 429, "抢购人数太多, 请稍后再试"); // 429请求太多的意思
+    }
+
+    private static boolean reject(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail(message)));
+        return false;
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀下单的令牌桶限流, 每张券一个桶.
+ * 全局的桶在Redis里用Lua脚本实现, 所有节点共享同一个速率, 以它为准; 每个节点前面还可以放一个本地桶,
+ * 速率是全局速率按节点数平分的一份, 超过本节点份额的请求直接在本地拒绝, 不再占用Redis连接.
+ * 本地桶只是粗略的前置过滤: 节点数配置得比实际少时只能挡住明显超速的请求,
+ * 负载不均衡时流量多的节点可能在全局还有余量时就拒绝请求.
+ * 速率存在Redis里, 可以在运行时修改, 修改后通过发布订阅通知所有节点重新加载.
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter implements MessageListener {
+
+    /**
+     * 一张券的限流规则, rate为0代表不限流
+     */
+    public static final class Rule {
+        private final double rate;
+        private final long burst;
+        private final LocalBucket localBucket;
+
+        private Rule(double rate, long burst, boolean local, int nodes) {
+            this.rate = rate;
+            this.burst = burst;
+            // 本地桶只分到全局的 1/nodes, 容量至少放得下一个令牌
+            this.localBucket = local && rate > 0
+                    ? new LocalBucket(rate / nodes, Math.max(1, (long) Math.ceil((double) burst / nodes))) : null;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public long getBurst() {
+            return burst;
+        }
+    }
+
+    /**
+     * 本地令牌桶, 和 rate_limit.lua 的算法一样
+     */
+    private static final class LocalBucket {
+        private final double rate;
+        private final long capacity;
+        private double tokens;
+        private long ts;
+
+        private LocalBucket(double rate, long capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.ts = System.nanoTime();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - ts) * rate / 1_000_000_000);
+            ts = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    /**
+     * Redis里没有单独设置的券使用的默认速率(每秒请求数), 0代表不限流
+     */
+    @Value("${hmdp.seckill.rate-limit.default-rate:0}")
+    private double defaultRate;
+    /**
+     * 默认的令牌桶容量, 0代表和速率相同
+     */
+    @Value("${hmdp.seckill.rate-limit.default-burst:0}")
+    private long defaultBurst;
+    /**
+     * 是否在访问Redis前先过一遍本地令牌桶
+     */
+    @Value("${hmdp.seckill.rate-limit.local-bucket:true}")
+    private boolean localBucket;
+    /**
+     * 部署的节点数, 本地桶的速率是全局速率的 1/nodes. 1代表本地桶和全局一样大, 只挡住单个节点就超速的请求
+     */
+    @Value("${hmdp.seckill.rate-limit.nodes:1}")
+    private int nodes;
+
+    // 每个节点缓存的限流规则, key: 优惠券id
+    private final Map<Long, Rule> rules = new ConcurrentHashMap<>();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SECKILL_RATE_RULE_CHANNEL));
+    }
+
+    /**
+     * 尝试为一次秒杀请求取一个令牌
+     * @param voucherId 优惠券id
+     * @return true代表放行, false代表被限流
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Rule rule = getRule(voucherId);
+        // 1. 不限流
+        if (rule.rate <= 0) {
+            return true;
+        }
+        // 2. 本节点的请求已经超过了自己那一份, 不用再问Redis
+        if (rule.localBucket != null && !rule.localBucket.tryAcquire()) {
+            return false;
+        }
+        // 3. 全局令牌桶
+        Long result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                Collections.singletonList(SECKILL_RATE_BUCKET_KEY + voucherId),
+                String.valueOf(rule.rate), String.valueOf(rule.burst),
+                String.valueOf(System.currentTimeMillis()), "1");
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 查询优惠券的限流规则, 只有第一次用到时才会访问Redis
+     * @param voucherId 优惠券id
+     * @return 限流规则
+     */
+    public Rule getRule(Long voucherId) {
+        return rules.computeIfAbsent(voucherId, this::loadRule);
+    }
+
+    /**
+     * 修改优惠券的限流规则, 并通知所有节点重新加载
+     * @param voucherId 优惠券id
+     * @param rate 每秒放行的请求数, 0代表不限流
+     * @param burst 令牌桶容量, 0代表和速率相同
+     */
+    public void updateRule(Long voucherId, double rate, long burst) {
+        Map<String, String> rule = new HashMap<>();
+        rule.put("rate", String.valueOf(rate));
+        rule.put("burst", String.valueOf(burst));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_RATE_RULE_KEY + voucherId, rule);
+        // 旧的桶可能比新的容量大, 删掉让它按新容量重新装满
+        stringRedisTemplate.delete(SECKILL_RATE_BUCKET_KEY + voucherId);
+        rules.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RATE_RULE_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 规则变了, 下次用到时重新加载
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            rules.remove(Long.valueOf(body));
+        } catch (NumberFormatException e) {
+            log.error("无法识别的限流规则变更消息: {}", body);
+        }
+    }
+
+    private Rule loadRule(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_RATE_RULE_KEY + voucherId, Arrays.asList("rate", "burst"));
+        double rate = StrUtil.isBlankIfStr(values.get(0)) ? defaultRate : Double.parseDouble(values.get(0).toString());
+        long burst = StrUtil.isBlankIfStr(values.get(1)) ? defaultBurst : Long.parseLong(values.get(1).toString());
+        // 容量至少要能放下一个令牌, 否则低速率时永远取不到令牌
+        if (burst <= 0) {
+            burst = Math.max(1, (long) Math.ceil(rate));
+        }
+        return new Rule(rate, burst, localBucket, Math.max(1, nodes));
+    }
+}
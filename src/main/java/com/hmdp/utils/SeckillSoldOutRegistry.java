@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记: 秒杀券卖完以后, 后面的请求直接在JVM内存里拒绝, 不再访问Redis和数据库.
+ * 某个节点发现售罄后通过Redis发布订阅通知所有节点; 补充库存时再广播一次重置.
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "SOLD_OUT:";
+    private static final String RESET = "RESET:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    /**
+     * 售罄标记的有效期. 补库存的重置消息和迟到的售罄消息可能乱序, 有效期保证标记最终会自己消失,
+     * 过期后放一个请求去Redis确认, 仍然售罄就会被重新标记
+     */
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:10}")
+    private long soldOutTtlSeconds;
+
+    // key: 优惠券id, value: 标记售罄的时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已经售罄, 只读本地内存
+     * @param voucherId 优惠券id
+     * @return true代表已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt < soldOutTtlSeconds * 1000) {
+            return true;
+        }
+        // 标记过期, 放行一个请求去确认
+        soldOut.remove(voucherId, markedAt);
+        return false;
+    }
+
+    /**
+     * 标记售罄, 并通知其他节点
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOut(Long voucherId) {
+        // 本节点已经标记过的就不再重复广播
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除售罄标记, 并通知其他节点
+     * @param voucherId 优惠券id
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.putIfAbsent(Long.valueOf(body.substring(SOLD_OUT.length())), System.currentTimeMillis());
+            } else if (body.startsWith(RESET)) {
+                soldOut.remove(Long.valueOf(body.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法识别的售罄消息: {}", body);
+        }
+    }
+}
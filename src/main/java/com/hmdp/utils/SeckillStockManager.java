@@ -0,0 +1,307 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存在Redis里的存放和扣减.
+ * <p>
+ * 默认每张券只有一个库存key, 和已下单用户集合一起在 seckill.lua 里原子判断.
+ * 库存很大的券可以按 hmdp.seckill.stock-shards 拆成多个分片, 每个分片有自己的库存key和已下单用户集合,
+ * 都带 {优惠券id:分片号} 的hash tag, 一个分片的两个key在集群的同一个slot, 不同分片可以落到不同节点.
+ * 用户按id固定落到一个分片(home), 每个脚本只操作一个分片:
+ * <ol>
+ *     <li>seckill_shard.lua 在home分片判断一人一单, 记下用户并扣库存</li>
+ *     <li>home分片卖完时用 seckill_shard_take.lua 逐个去兄弟分片扣库存, 都扣不到才算售罄</li>
+ *     <li>扣到库存后再写订单状态、发订单消息</li>
+ * </ol>
+ * 这几步不在一个脚本里, 不是原子的: 发消息失败时会把库存还回去; 进程在两步之间崩溃只会少卖(库存扣了没有订单), 不会超卖.
+ * 一人一单最终由数据库 (user_id, voucher_id) 唯一索引兜底.
+ */
+@Component
+public class SeckillStockManager {
+
+    /**
+     * 秒杀脚本的返回值
+     */
+    public static final int OK = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    public static final int NOT_INITIALIZED = 3;
+    // 分片脚本专用: home分片卖完了, 用户已经记入集合, 要去兄弟分片扣库存
+    private static final int SHARD_EMPTY = 4;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 库存不少于 shard-min-stock 的券拆成几个分片, 1代表不分片
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards = 1;
+    @Value("${hmdp.seckill.shard-min-stock:1000}")
+    private int shardMinStock = 1000;
+
+    // 每张券的分片数, 创建后不会变, 只缓存从Redis读到的值
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    // 秒杀资格判断脚本: 一人一单 + 扣库存 + 发送订单消息 + 记录订单状态, 在Redis里原子执行
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+    // 分片库存的秒杀脚本: 只在用户的home分片判断一人一单并扣库存
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+    }
+    // 从兄弟分片扣一件库存
+    private static final DefaultRedisScript<Long> SHARD_TAKE_SCRIPT;
+    static {
+        SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SHARD_TAKE_SCRIPT.setResultType(Long.class);
+    }
+    // 补充库存脚本: 库存key存在时才INCRBY
+    private static final DefaultRedisScript<Long> ADD_STOCK_SCRIPT;
+    static {
+        ADD_STOCK_SCRIPT = new DefaultRedisScript<>();
+        ADD_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_add_stock.lua"));
+        ADD_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    public SeckillStockManager(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 新建秒杀券时把库存写入Redis, 库存达到 shard-min-stock 时按配置拆成分片
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     */
+    public void initStock(Long voucherId, int stock) {
+        initStock(voucherId, stock, shardsFor(stock));
+    }
+
+    /**
+     * 按指定的分片数把库存写入Redis. 库存平均分到各个分片, 除不尽的余数放在前几个分片
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     * @param shards 分片数, 1代表不分片
+     */
+    public void initStock(Long voucherId, int stock, int shards) {
+        // 1. 先写库存, 再写分片数, 读到分片数时各分片的库存已经在了
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i, shards), String.valueOf(share(stock, i, shards)));
+        }
+        // 2. 不分片也写分片数, 读到的值才能放心缓存
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 预热时调用: Redis里还没有这张券的库存才写入, 已经有的不覆盖(可能已经被扣减过)
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     * @return true代表写入了库存
+     */
+    public boolean initStockIfAbsent(Long voucherId, int stock) {
+        // 1. 确定分片数: 已经有单key库存的券(分片功能上线前创建的)仍然不分片
+        String key = SECKILL_STOCK_SHARDS_KEY + voucherId;
+        int shards = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId)) ? 1 : shardsFor(stock);
+        // 2. 几个节点同时预热时以先写入的分片数为准
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(shards)))) {
+            shards = Integer.parseInt(stringRedisTemplate.opsForValue().get(key));
+        }
+        shardCounts.put(voucherId, shards);
+        // 3. 预热在开售之前, 几个节点同时写入的也是同一个库存值
+        boolean written = false;
+        for (int i = 0; i < shards; i++) {
+            written |= Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(stockKey(voucherId, i, shards), String.valueOf(share(stock, i, shards))));
+        }
+        return written;
+    }
+
+    /**
+     * 补充库存, 分片时平均分到各个分片. Redis里还没有库存时不创建, 否则预热的SETNX就再也加载不了数据库里的真实库存
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @return false代表库存还没有写入Redis, 没有补充
+     */
+    public boolean addStock(Long voucherId, int count) {
+        int shards = shardCount(voucherId);
+        boolean added = true;
+        for (int i = 0; i < shards; i++) {
+            int n = share(count, i, shards);
+            if (n == 0) {
+                continue;
+            }
+            Long stock = stringRedisTemplate.execute(ADD_STOCK_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, i, shards)), String.valueOf(n));
+            added &= stock != null;
+        }
+        return added;
+    }
+
+    /**
+     * 只读地预先判断一人一单和库存, 不修改任何数据, 一次往返(管道).
+     * 没有资格的请求(秒杀时是绝大多数)在这里就被拒绝, 不用先领订单id; 最终结果以 {@link #tryAcquire} 为准
+     * @return 0:可能有资格 1:库存不足 2:重复下单 3:库存还没有写入Redis
+     */
+    public int check(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        int home = homeShard(userId, shards);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sIsMember(orderKey(voucherId, home, shards), userId.toString());
+            for (int i = 0; i < shards; i++) {
+                conn.get(stockKey(voucherId, i, shards));
+            }
+            return null;
+        });
+        if (Boolean.TRUE.equals(results.get(0))) {
+            return DUPLICATE;
+        }
+        // 分片时只要有一个分片还有库存就可能有资格
+        boolean initialized = false;
+        for (Object stock : results.subList(1, results.size())) {
+            if (stock == null) {
+                continue;
+            }
+            initialized = true;
+            if (Long.parseLong(stock.toString()) > 0) {
+                return OK;
+            }
+        }
+        return initialized ? SOLD_OUT : NOT_INITIALIZED;
+    }
+
+    /**
+     * 执行秒杀脚本, 判断一人一单并扣减库存, 成功时订单同时进入消息队列
+     * @return 0:成功 1:库存不足 2:重复下单 3:库存还没有写入Redis
+     */
+    public int tryAcquire(Long voucherId, Long userId, long orderId) {
+        return tryAcquire(voucherId, userId, orderId, SECKILL_ORDER_STREAM_KEY);
+    }
+
+    /**
+     * 同 {@link #tryAcquire(Long, Long, long)}, 订单发到指定的stream. 压测时用单独的stream, 不会被消费者落库
+     */
+    public int tryAcquire(Long voucherId, Long userId, long orderId, String streamKey) {
+        int shards = shardCount(voucherId);
+        if (shards > 1) {
+            return tryAcquireShard(voucherId, userId, orderId, streamKey, shards);
+        }
+        List<String> keys = Arrays.asList(
+                SECKILL_ORDER_KEY + voucherId, streamKey,
+                SeckillOrderStatus.key(userId, orderId), SECKILL_STOCK_KEY + voucherId);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys,
+                userId.toString(), voucherId.toString(), String.valueOf(orderId),
+                String.valueOf(System.currentTimeMillis()), SECKILL_ORDER_STATUS_TTL.toString());
+        return result == null ? NOT_INITIALIZED : result.intValue();
+    }
+
+    private int tryAcquireShard(Long voucherId, Long userId, long orderId, String streamKey, int shards) {
+        // 1. 在home分片判断一人一单并扣库存
+        int home = homeShard(userId, shards);
+        String orderKey = orderKey(voucherId, home, shards);
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(orderKey, stockKey(voucherId, home, shards)), userId.toString());
+        if (result == null) {
+            return NOT_INITIALIZED;
+        }
+        int taken = home;
+        if (result == SHARD_EMPTY) {
+            // 2. home分片卖完了, 依次去兄弟分片扣库存
+            taken = -1;
+            for (int i = 1; i < shards && taken < 0; i++) {
+                int shard = (home + i) % shards;
+                Long took = stringRedisTemplate.execute(SHARD_TAKE_SCRIPT,
+                        Collections.singletonList(stockKey(voucherId, shard, shards)));
+                if (took != null && took == 1) {
+                    taken = shard;
+                }
+            }
+            if (taken < 0) {
+                // 2.1. 所有分片都卖完了, 把用户从集合里移除, 库存补充后还能再抢
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                return SOLD_OUT;
+            }
+        } else if (result != OK) {
+            return result.intValue();
+        }
+        // 3. 记录订单状态, 发送订单消息
+        String statusKey = SeckillOrderStatus.key(userId, orderId);
+        try {
+            stringRedisTemplate.opsForValue().set(statusKey, SeckillOrderStatus.PENDING, SECKILL_ORDER_STATUS_TTL, TimeUnit.SECONDS);
+            Map<String, String> fields = new HashMap<>(8);
+            fields.put("userId", userId.toString());
+            fields.put("voucherId", voucherId.toString());
+            fields.put("id", String.valueOf(orderId));
+            fields.put("createTime", String.valueOf(System.currentTimeMillis()));
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(fields).withStreamKey(streamKey));
+        } catch (RuntimeException e) {
+            // 3.1. 消息没发出去, 把库存和一人一单的名额还回去
+            stringRedisTemplate.execute(ADD_STOCK_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, taken, shards)), "1");
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+            stringRedisTemplate.delete(statusKey);
+            throw e;
+        }
+        return OK;
+    }
+
+    private int shardsFor(int stock) {
+        return stockShards > 1 && stock >= shardMinStock ? stockShards : 1;
+    }
+
+    // 没有分片数的券按不分片处理(分片功能上线前创建、还没预热的券), 不缓存, 预热后再读
+    private int shardCount(Long voucherId) {
+        Integer shards = shardCounts.get(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+        if (value == null) {
+            return 1;
+        }
+        shards = Integer.parseInt(value);
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    private static int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    // 第i个分片分到的数量
+    private static int share(int total, int i, int shards) {
+        return total / shards + (i < total % shards ? 1 : 0);
+    }
+
+    private static String stockKey(Long voucherId, int shard, int shards) {
+        return shards > 1 ? SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}" : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    private static String orderKey(Long voucherId, int shard, int shards) {
+        return shards > 1 ? SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}" : SECKILL_ORDER_KEY + voucherId;
+    }
+}
@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+
+/**
+ * 秒杀券时间窗口的进程内缓存. 秒杀券的开始/结束时间创建后几乎不变,
+ * 没必要每个请求都 getById 查一次库. 启动时全量加载, 新建秒杀券时加载,
+ * 变更时通过Redis发布订阅通知其他节点失效, 下次用到时再从库里加载.
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCache implements MessageListener {
+
+    /**
+     * 不可变的时间窗口快照, 时间提前换算成毫秒, 判断时只需要比较两个long
+     */
+    public static final class Snapshot {
+        private final long voucherId;
+        private final long beginMillis;
+        private final long endMillis;
+
+        private Snapshot(long voucherId, long beginMillis, long endMillis) {
+            this.voucherId = voucherId;
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+        }
+
+        public long getVoucherId() {
+            return voucherId;
+        }
+
+        public boolean notStarted(long nowMillis) {
+            return nowMillis < beginMillis;
+        }
+
+        public boolean ended(long nowMillis) {
+            return nowMillis > endMillis;
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+    private final ISeckillVoucherService seckillVoucherService;
+
+    /**
+     * 不存在的券id缓存多久, 过期后再查一次库
+     */
+    @Value("${hmdp.seckill.voucher-cache.not-found-ttl-seconds:30}")
+    private long notFoundTtlSeconds;
+    /**
+     * 最多记住多少个不存在的券id, 超过淘汰最早记下的
+     */
+    @Value("${hmdp.seckill.voucher-cache.not-found-maximum-size:10000}")
+    private int notFoundMaximumSize;
+
+    // 只放数据库里存在的券, 数量和秒杀券一样多
+    private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+    // 数据库里不存在的券id, value是过期时间. 防止同一个随机id反复打到数据库上, 有界并且会过期, 不会撑爆内存
+    private final Map<Long, Long> notFound = Collections.synchronizedMap(new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            // 有效期都一样, 最早放进来的也最早过期
+            return size() > notFoundMaximumSize;
+        }
+    });
+
+    public SeckillVoucherCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                               ISeckillVoucherService seckillVoucherService) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+        this.seckillVoucherService = seckillVoucherService;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SECKILL_VOUCHER_CHANNEL));
+        // 启动时全量加载, 秒杀券的数量不会太多
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.list();
+            vouchers.forEach(v -> snapshots.put(v.getVoucherId(), toSnapshot(v)));
+            log.info("加载了{}张秒杀券的时间窗口", vouchers.size());
+        } catch (Exception e) {
+            // 数据库暂时不可用也不影响启动, 用到的时候再按id加载
+            log.error("加载秒杀券时间窗口失败", e);
+        }
+    }
+
+    /**
+     * 查询秒杀券的时间窗口, 只有第一次用到时才会查库
+     * @param voucherId 优惠券id
+     * @return 时间窗口, 券不存在时返回null
+     */
+    public Snapshot get(Long voucherId) {
+        Snapshot snapshot = snapshots.get(voucherId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // 1.最近查过不存在的id, 有效期内不再查库
+        Long expireAt = notFound.get(voucherId);
+        if (expireAt != null) {
+            if (expireAt > System.currentTimeMillis()) {
+                return null;
+            }
+            notFound.remove(voucherId, expireAt);
+        }
+        // 2.查库, 同一个id并发时只查一次. 不存在时不放进snapshots
+        snapshot = snapshots.computeIfAbsent(voucherId, id -> {
+            SeckillVoucher voucher = seckillVoucherService.getById(id);
+            return voucher == null ? null : toSnapshot(voucher);
+        });
+        if (snapshot == null) {
+            notFound.put(voucherId, System.currentTimeMillis() + notFoundTtlSeconds * 1000);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 秒杀券新建或修改后调用: 事务提交后更新本地快照, 并通知其他节点失效
+     * @param voucher 秒杀券
+     */
+    public void refresh(SeckillVoucher voucher) {
+        Runnable refresh = () -> {
+            snapshots.put(voucher.getVoucherId(), toSnapshot(voucher));
+            notFound.remove(voucher.getVoucherId());
+            stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL, voucher.getVoucherId().toString());
+        };
+        // 事务还没提交时其他节点查不到新数据, 所以等提交之后再广播
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    refresh.run();
+                }
+            });
+        } else {
+            refresh.run();
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 其他节点改了秒杀券, 本地快照失效, 下次用到时重新加载
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body);
+            snapshots.remove(voucherId);
+            // 可能是新建的券, 之前记下的不存在也要清掉
+            notFound.remove(voucherId);
+        } catch (NumberFormatException e) {
+            log.error("无法识别的秒杀券变更消息: {}", body);
+        }
+    }
+
+    private static Snapshot toSnapshot(SeckillVoucher voucher) {
+        return new Snapshot(voucher.getVoucherId(), toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()));
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
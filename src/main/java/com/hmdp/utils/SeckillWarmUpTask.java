@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 定时扫描即将开始的秒杀券, 在开售前预热. 每个节点都会执行,
+ * 因为时间窗口、限流规则这些缓存在每个节点的内存里
+ */
+@Slf4j
+@Component
+public class SeckillWarmUpTask {
+
+    private final IVoucherService voucherService;
+    private final ISeckillVoucherService seckillVoucherService;
+
+    /**
+     * 提前多少分钟预热
+     */
+    @Value("${hmdp.seckill.warm-up.lead-minutes:5}")
+    private long leadMinutes;
+
+    // 本节点已经预热过的券, 开售后就从扫描结果里消失, 同时从这里移除
+    private final Set<Long> warmed = ConcurrentHashMap.newKeySet();
+
+    public SeckillWarmUpTask(IVoucherService voucherService, ISeckillVoucherService seckillVoucherService) {
+        this.voucherService = voucherService;
+        this.seckillVoucherService = seckillVoucherService;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.warm-up.scan-interval-ms:30000}")
+    public void warmUpUpcoming() {
+        // 1.查询接下来leadMinutes分钟内开始的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> upcoming;
+        try {
+            upcoming = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .gt("begin_time", now)
+                    .le("begin_time", now.plusMinutes(leadMinutes))
+                    .list();
+        } catch (Exception e) {
+            log.error("查询即将开始的秒杀券失败", e);
+            return;
+        }
+        Set<Long> ids = upcoming.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet());
+        // 2.已经开售的券不再需要记录
+        warmed.retainAll(ids);
+        // 3.预热还没预热过的券
+        for (Long voucherId : ids) {
+            if (warmed.add(voucherId)) {
+                voucherService.warmUpSeckillVoucher(voucherId);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 店铺缓存的二进制编解码器, 按固定的字段顺序手写, 不用反射, 解码一遍就得到Shop.
+ * 格式: 版本号(1字节) + 字段存在的位图(变长整数) + 依次写出存在的字段.
+ * 整数用zigzag变长编码, 字符串是 长度 + UTF-8, 时间是 秒 + 纳秒, 小数是8字节.
+ * 加字段时只能追加在最后, 并升级版本号.
+ */
+@Component
+public class ShopBinaryCodec implements CacheCodec {
+
+    private static final byte VERSION = 1;
+
+    @Override
+    public Class<?> type() {
+        return Shop.class;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Shop shop = (Shop) value;
+        Writer w = new Writer();
+        w.writeByte(VERSION);
+        // 1.哪些字段不为null
+        Object[] fields = {shop.getId(), shop.getName(), shop.getTypeId(), shop.getImages(), shop.getArea(),
+                shop.getAddress(), shop.getX(), shop.getY(), shop.getAvgPrice(), shop.getSold(),
+                shop.getComments(), shop.getScore(), shop.getOpenHours(), shop.getCreateTime(), shop.getUpdateTime()};
+        long mask = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                mask |= 1L << i;
+            }
+        }
+        w.writeVarLong(mask);
+        // 2.按顺序写不为null的字段
+        for (Object field : fields) {
+            if (field == null) {
+                continue;
+            }
+            if (field instanceof Long || field instanceof Integer) {
+                w.writeVarLong(((Number) field).longValue());
+            } else if (field instanceof Double) {
+                w.writeDouble((Double) field);
+            } else if (field instanceof String) {
+                w.writeString((String) field);
+            } else {
+                LocalDateTime time = (LocalDateTime) field;
+                w.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                w.writeVarLong(time.getNano());
+            }
+        }
+        return w.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Reader r = new Reader(bytes);
+        byte version = r.readByte();
+        if (version != VERSION) {
+            throw new IllegalStateException("不支持的店铺缓存版本: " + version);
+        }
+        long mask = r.readVarLong();
+        Shop shop = new Shop();
+        if ((mask & 1) != 0) shop.setId(r.readVarLong());
+        if ((mask & 1 << 1) != 0) shop.setName(r.readString());
+        if ((mask & 1 << 2) != 0) shop.setTypeId(r.readVarLong());
+        if ((mask & 1 << 3) != 0) shop.setImages(r.readString());
+        if ((mask & 1 << 4) != 0) shop.setArea(r.readString());
+        if ((mask & 1 << 5) != 0) shop.setAddress(r.readString());
+        if ((mask & 1 << 6) != 0) shop.setX(r.readDouble());
+        if ((mask & 1 << 7) != 0) shop.setY(r.readDouble());
+        if ((mask & 1 << 8) != 0) shop.setAvgPrice(r.readVarLong());
+        if ((mask & 1 << 9) != 0) shop.setSold((int) r.readVarLong());
+        if ((mask & 1 << 10) != 0) shop.setComments((int) r.readVarLong());
+        if ((mask & 1 << 11) != 0) shop.setScore((int) r.readVarLong());
+        if ((mask & 1 << 12) != 0) shop.setOpenHours(r.readString());
+        if ((mask & 1 << 13) != 0) shop.setCreateTime(r.readTime());
+        if ((mask & 1 << 14) != 0) shop.setUpdateTime(r.readTime());
+        return type.cast(shop);
+    }
+
+    private static final class Writer {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        private void writeVarLong(long v) {
+            // zigzag: 绝对值小的负数也只占很少的字节
+            long z = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((z & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[pos++] = (byte) z;
+        }
+
+        private void writeDouble(double d) {
+            long bits = Double.doubleToLongBits(d);
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (bits >>> (i * 8));
+            }
+        }
+
+        private void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private byte readByte() {
+            return buf[pos++];
+        }
+
+        private long readVarLong() {
+            long z = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                z |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (z >>> 1) ^ -(z & 1);
+        }
+
+        private double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buf[pos++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        private String readString() {
+            int len = (int) readVarLong();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        private LocalDateTime readTime() {
+            long seconds = readVarLong();
+            return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(), ZoneOffset.UTC);
+        }
+    }
+}
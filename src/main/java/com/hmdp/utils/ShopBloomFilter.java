@@ -0,0 +1,201 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺id的布隆过滤器, 防止随机id的缓存穿透: 过滤器里没有的id, {@link CacheClient} 直接返回不存在,
+ * 不访问Redis也不查库, 也不用再缓存空值.
+ * 每个节点在内存里各有一份, 启动时和定时从 tb_shop 全量重建(删除的店铺会在重建后消失);
+ * 新增店铺时本节点直接添加, 同时记到Redis的有序集合 cache:shop:bloom:recent 里(分数是添加时间), 再通过发布订阅通知其他节点添加.
+ * 发布订阅最多送达一次, 所以每个节点还会每隔 sync-interval-ms 从有序集合里把最近新增的id补进来,
+ * 漏掉的消息最多让新店铺被误判为不存在 sync-interval-ms, 而不是一直到下一次重建.
+ * 不经过 saveShop 直接写库的店铺要等下一次重建.
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements MessageListener {
+
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+    private final CacheClient cacheClient;
+
+    /**
+     * 是否启用布隆过滤器
+     */
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    /**
+     * 预计的店铺数量, 实际数量更多时按实际数量的2倍建
+     */
+    @Value("${hmdp.cache.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+    /**
+     * 误判率
+     */
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+    /**
+     * 全量重建的间隔, 有序集合里的id保留两个间隔, 之后已经在所有节点的重建结果里了
+     */
+    @Value("${hmdp.cache.bloom.rebuild-interval-ms:3600000}")
+    private long rebuildIntervalMillis;
+
+    // 各个节点的时钟可能不一致, 从有序集合补id时往前多读一段
+    private static final long SYNC_OVERLAP_MILLIS = 60000;
+    // 上一次补id的时间
+    private volatile long lastSyncMillis;
+
+    // 还没建好时为null, 这时所有id都当作存在
+    private volatile BloomFilter filter;
+    // 正在重建的过滤器, 重建期间新增的id也要加进去
+    private volatile BloomFilter building;
+
+    public ShopBloomFilter(ShopMapper shopMapper, StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer container, CacheClient cacheClient) {
+        this.shopMapper = shopMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+        this.cacheClient = cacheClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        container.addMessageListener(this, new ChannelTopic(CACHE_SHOP_BLOOM_CHANNEL));
+        rebuild();
+        // 不是数字的id不过滤, 交给后面的流程
+        cacheClient.registerFilter(CACHE_SHOP_KEY, id -> !(id instanceof Number) || mightContain(((Number) id).longValue()));
+    }
+
+    /**
+     * 定时全量重建, 清理掉已经删除的店铺
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:3600000}",
+            fixedDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:3600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 1.先把新的过滤器挂出来, 之后新增的id也会加进去
+            long count = shopMapper.selectCount(null);
+            BloomFilter next = new BloomFilter(Math.max(expectedInsertions, count * 2), fpp);
+            building = next;
+            // 2.只查id, 放进新的过滤器
+            List<Object> ids = shopMapper.selectObjs(new QueryWrapper<Shop>().select("id"));
+            for (Object id : ids) {
+                next.put(((Number) id).longValue());
+            }
+            // 3.重建期间别的节点新增、但事务还没提交的id, 从有序集合里补上
+            Set<String> recent = stringRedisTemplate.opsForZSet().rangeByScore(CACHE_SHOP_BLOOM_RECENT_KEY,
+                    begin - SYNC_OVERLAP_MILLIS, Double.POSITIVE_INFINITY);
+            putAll(next, recent);
+            // 4.替换, 清理掉已经包含在重建结果里的旧id
+            filter = next;
+            lastSyncMillis = begin;
+            stringRedisTemplate.opsForZSet().removeRangeByScore(CACHE_SHOP_BLOOM_RECENT_KEY,
+                    Double.NEGATIVE_INFINITY, begin - 2 * rebuildIntervalMillis);
+            log.info("店铺布隆过滤器重建完成, {}个id, {}位, {}个哈希", ids.size(), next.bitSize(), next.hashCount());
+        } catch (Exception e) {
+            // 重建失败继续用旧的, 没有旧的就全部放行
+            log.error("店铺布隆过滤器重建失败", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    /**
+     * 从有序集合里补上最近新增的店铺id, 兜底丢失的发布订阅消息
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.sync-interval-ms:5000}")
+    public void sync() {
+        BloomFilter current = filter;
+        if (!enabled || current == null) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            Set<String> recent = stringRedisTemplate.opsForZSet().rangeByScore(CACHE_SHOP_BLOOM_RECENT_KEY,
+                    lastSyncMillis - SYNC_OVERLAP_MILLIS, Double.POSITIVE_INFINITY);
+            if (recent != null) {
+                recent.forEach(id -> put(Long.parseLong(id)));
+            }
+            lastSyncMillis = begin;
+        } catch (Exception e) {
+            // 下次从同一个位置再补
+            log.error("同步新增的店铺id失败", e);
+        }
+    }
+
+    /**
+     * @param id 店铺id
+     * @return false代表一定不存在
+     */
+    public boolean mightContain(Long id) {
+        BloomFilter current = filter;
+        return id != null && (current == null || current.mightContain(id));
+    }
+
+    /**
+     * 新增店铺后调用: 本节点添加, 记到有序集合里, 并通知其他节点添加
+     * @param id 店铺id
+     */
+    public void add(Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        put(id);
+        stringRedisTemplate.opsForZSet().add(CACHE_SHOP_BLOOM_RECENT_KEY, id.toString(), System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(CACHE_SHOP_BLOOM_CHANNEL, id.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            put(Long.valueOf(body));
+        } catch (NumberFormatException e) {
+            log.error("无法识别的店铺id: {}", body);
+        }
+    }
+
+    private static void putAll(BloomFilter target, Set<String> ids) {
+        if (ids != null) {
+            ids.forEach(id -> target.put(Long.parseLong(id)));
+        }
+    }
+
+    private void put(long id) {
+        // 先加到正在重建的过滤器, 再加到当前的, 重建完成替换时不会丢
+        BloomFilter next = building;
+        if (next != null) {
+            next.put(id);
+        }
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(id);
+        }
+    }
+}
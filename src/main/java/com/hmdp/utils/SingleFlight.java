@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并: 同一个key同时只有一个线程(leader)真正执行加载, 其他线程共用它的结果.
+ * 热点key缓存失效时, 一个节点上N个请求只会查一次库、抢一次分布式锁.
+ */
+public class SingleFlight {
+
+    // key: 缓存的key, value: 正在进行的加载
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 同步执行: 没有正在进行的加载时自己执行, 否则等正在进行的那次的结果
+     * @param key 合并的key
+     * @param loader 加载逻辑, 抛出的异常会原样抛给所有等待的线程
+     * @return 加载的结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // 1.已经有leader在加载, 等它的结果
+            return (T) await(existing);
+        }
+        // 2.自己是leader, 执行加载, 完成后马上移除, 之后的请求重新加载
+        try {
+            T result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 异步执行: 同一个key已经有任务在执行时不再提交
+     * @param key 合并的key
+     * @param task 任务
+     * @param executor 执行任务的线程池
+     */
+    public void submit(String key, Runnable task, Executor executor) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, future) != null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 线程池拒绝了, 让之后的请求可以再提交
+            inFlight.remove(key, future);
+            throw e;
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ * 雪花算法的id生成器, 发号完全在本地, 不访问Redis.
+ * id的组成: 符号位0 | 标记位1 | 40位毫秒时间戳 | 10位worker id | 12位毫秒内序列号.
+ * 标记位保证和 {@link RedisIdWorker} 的id(秒级时间戳 << 32 | 序列号)不会重复, 同一个业务切换生成器也不会冲突.
+ * 第一次有业务切换到雪花算法时({@link #start()})才同步从Redis租一个worker id(SET NX PX), 租不到就切换失败,
+ * 没有业务用雪花算法的节点不占worker id; 之后由心跳续期, 租约失效的节点停止发号, 防止和新的租约持有者重复.
+ * 每次租到和续期时在Redis里记下本节点最多会发到的时间戳, 下一个持有者从这之后开始发号, 两个节点的时钟差多少都不会重复.
+ * 时钟回拨时继续用上次的时间戳, 向后面的毫秒借序列号, 最多借 max-borrow-millis, 超过就等时钟追上来.
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    /**
+     * 开始时间戳, 和 {@link RedisIdWorker} 是同一天
+     */
+    private static final long BEGIN_MILLIS = 1768176000000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << 62;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * worker id租约的有效期, 每过1/3续期一次
+     */
+    @Value("${hmdp.id.snowflake.lease-ttl-seconds:30}")
+    private long leaseTtlSeconds;
+    /**
+     * 时钟回拨或者一毫秒内序列号用完时, 最多向未来借多少毫秒
+     */
+    @Value("${hmdp.id.snowflake.max-borrow-millis:1000}")
+    private long maxBorrowMillis;
+
+    // 本节点的标识, 只能续期和释放自己的租约
+    private final String owner = UUID.randomUUID().toString(true);
+    // 是否已经租过worker id并开始心跳
+    private boolean started;
+    private volatile long workerId = -1;
+    // 本地估算的租约到期时间(发出续期命令的时间 + 有效期), 不会比Redis里的晚
+    private volatile long leaseExpiresAt;
+    // 上次发号用的时间戳, 时钟回拨时会比当前时间大
+    private long lastTimestamp = -1;
+    private long sequence;
+    // 当前时间, 测试时换成可以回拨的时钟
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snowflake-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 租worker id并开始心跳, 只有第一次调用生效. 由 {@link RedisIdWorker} 在有业务切换到雪花算法时调用
+     * @throws IllegalStateException 所有worker id都被占用了
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        // 1.同步租好worker id, 否则刚切换过来的业务发不了号
+        if (!lease()) {
+            throw new IllegalStateException("没有空闲的snowflake worker id, 最多" + (MAX_WORKER_ID + 1) + "个节点");
+        }
+        // 2.之后由心跳续期, 租约丢了心跳会重新租
+        long periodMillis = TimeUnit.SECONDS.toMillis(leaseTtlSeconds) / 3;
+        scheduler.scheduleWithFixedDelay(this::heartbeat, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        started = true;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        long id = workerId;
+        if (id >= 0) {
+            workerId = -1;
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), owner);
+        }
+    }
+
+    /**
+     * @return 下一个id
+     * @throws IllegalStateException 还没有租到worker id, 或者租约已经失效
+     */
+    public synchronized long nextId() {
+        long now = clock.getAsLong();
+        long id = workerId;
+        if (id < 0 || now >= leaseExpiresAt) {
+            throw new IllegalStateException("snowflake worker id租约无效, 暂时不能发号");
+        }
+        if (now > lastTimestamp) {
+            // 1.新的一毫秒, 序列号从0开始
+            lastTimestamp = now;
+            sequence = 0;
+        } else {
+            // 2.同一毫秒内, 或者时钟回拨了: 继续用上次的时间戳
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 3.这一毫秒的序列号用完了, 借下一毫秒的
+                lastTimestamp++;
+                // 4.借得太多时等时钟追上来, 保证租约失效后本节点发出的时间戳不会超过 到期时间 + maxBorrowMillis
+                while (lastTimestamp - now > maxBorrowMillis) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    now = clock.getAsLong();
+                }
+            }
+        }
+        return SNOWFLAKE_FLAG
+                | (lastTimestamp - BEGIN_MILLIS) << (WORKER_BITS + SEQUENCE_BITS)
+                | id << SEQUENCE_BITS
+                | sequence;
+    }
+
+    /**
+     * @param id 生成的id
+     * @return 是否是雪花算法生成的id
+     */
+    public static boolean isSnowflake(long id) {
+        return (id & SNOWFLAKE_FLAG) != 0;
+    }
+
+    /**
+     * 解析雪花算法生成的id
+     * @param id 生成的id
+     * @return 生成时间、worker id和毫秒内的序列号
+     */
+    public static RedisIdWorker.DecodedId decode(long id) {
+        long millis = ((id & ~SNOWFLAKE_FLAG) >>> (WORKER_BITS + SEQUENCE_BITS)) + BEGIN_MILLIS;
+        RedisIdWorker.DecodedId decoded = new RedisIdWorker.DecodedId();
+        decoded.setGenerator(RedisIdWorker.Generator.SNOWFLAKE);
+        decoded.setTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()));
+        decoded.setWorkerId(id >>> SEQUENCE_BITS & MAX_WORKER_ID);
+        decoded.setSequence(id & SEQUENCE_MASK);
+        return decoded;
+    }
+
+    /**
+     * @return 当前租到的worker id, -1代表没有
+     */
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    private void heartbeat() {
+        try {
+            long id = workerId;
+            if (id >= 0) {
+                // 1.续期自己的租约
+                long sentAt = clock.getAsLong();
+                long ttlMillis = TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+                long last;
+                synchronized (this) {
+                    last = lastTimestamp;
+                }
+                // 续期后最多发到 max(已经发到的, 到期时间) + 借的时间
+                long highWater = Math.max(last, sentAt + ttlMillis) + maxBorrowMillis;
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Arrays.asList(ID_WORKER_KEY + id, ID_WORKER_LAST_KEY + id),
+                        owner, String.valueOf(ttlMillis), String.valueOf(highWater));
+                if (Long.valueOf(1L).equals(renewed)) {
+                    leaseExpiresAt = sentAt + ttlMillis;
+                    if (lastTimestamp > sentAt) {
+                        log.warn("时钟回拨或发号过快, worker {} 向未来借了{}毫秒", id, lastTimestamp - sentAt);
+                    }
+                    return;
+                }
+                // 2.租约已经过期被别人拿走了, 换一个
+                log.warn("snowflake worker id {} 的租约已经失效, 重新租一个", id);
+                workerId = -1;
+            }
+            if (!lease()) {
+                log.error("没有空闲的snowflake worker id");
+            }
+        } catch (Exception e) {
+            // 本地的租约还没到期时可以继续发号, 下一次心跳再试
+            log.error("snowflake worker id 心跳失败", e);
+        }
+    }
+
+    /**
+     * 租一个空闲的worker id
+     * @return false代表所有worker id都被占用了
+     */
+    private boolean lease() {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+        // 从随机位置开始找, 多个节点同时启动时不会都抢同一个
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            long sentAt = clock.getAsLong();
+            Long firstMillis = stringRedisTemplate.execute(LEASE_SCRIPT, Arrays.asList(ID_WORKER_KEY + id, ID_WORKER_LAST_KEY + id),
+                    owner, String.valueOf(ttlMillis), String.valueOf(sentAt), String.valueOf(maxBorrowMillis));
+            if (firstMillis != null && firstMillis >= 0) {
+                synchronized (this) {
+                    // 从上一个持有者记下的最大时间戳之后开始发才不会重复
+                    if (lastTimestamp < firstMillis) {
+                        lastTimestamp = firstMillis;
+                        sequence = 0;
+                    }
+                    if (firstMillis - sentAt > maxBorrowMillis) {
+                        log.warn("上一个持有者的时钟比本节点快, worker {} 从{}毫秒之后开始发号", id, firstMillis - sentAt);
+                    }
+                    leaseExpiresAt = sentAt + ttlMillis;
+                    workerId = id;
+                }
+                log.info("租到snowflake worker id {}", id);
+                return true;
+            }
+        }
+        return false;
+    }
+}
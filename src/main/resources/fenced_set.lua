@@ -0,0 +1,12 @@
+-- 带fencing token的缓存写入: 只有锁还被这个token持有时才写, 过期的持有者写不进去
+-- KEYS[1]: 锁的 key
+-- KEYS[2]: 要写的缓存 key
+-- ARGV[1]: fencing token
+-- ARGV[2]: 缓存的值
+-- ARGV[3]: 缓存的有效期(毫秒)
+
+if (redis.call('hget', KEYS[1], 'fence') ~= ARGV[1]) then
+    return 0
+end
+redis.call('set', KEYS[2], ARGV[2], 'PX', ARGV[3])
+return 1
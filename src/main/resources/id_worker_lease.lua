@@ -0,0 +1,20 @@
+-- KEYS[1]: worker id 的租约 key (例如 id:worker:7)
+-- KEYS[2]: 这个worker id发过的最大时间戳 key (例如 id:worker:last:7), 不过期, 租约过期后下一个持有者还要读
+-- ARGV[1]: 本节点的标识
+-- ARGV[2]: 租约有效期(毫秒)
+-- ARGV[3]: 本节点发出租约命令的时间(毫秒)
+-- ARGV[4]: 最多向未来借多少毫秒
+
+-- 1. 租约被别人占着, 返回-1
+if (not redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2])) then
+    return -1
+end
+-- 2. 从上一个持有者记下的最大时间戳之后开始发号, 和两个节点的时钟差多少无关.
+--    没有记录时(第一次租这个id)按本节点的时钟, 上一个持有者最多发到 它的到期时间 + 借的时间
+local sentAt = tonumber(ARGV[3])
+local maxBorrow = tonumber(ARGV[4])
+local last = tonumber(redis.call('get', KEYS[2]) or '0')
+local start = math.max(last + 1, sentAt + maxBorrow)
+-- 3. 记下本次租约最多发到的时间戳, 本节点崩溃后下一个持有者从这之后开始
+redis.call('set', KEYS[2], string.format('%d', math.max(start, sentAt + tonumber(ARGV[2])) + maxBorrow))
+return start
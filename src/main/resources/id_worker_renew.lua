@@ -0,0 +1,14 @@
+-- KEYS[1]: worker id 的租约 key (例如 id:worker:7)
+-- KEYS[2]: 这个worker id发过的最大时间戳 key (例如 id:worker:last:7)
+-- ARGV[1]: 本节点的标识
+-- ARGV[2]: 租约有效期(毫秒)
+-- ARGV[3]: 续期后本节点最多发到的时间戳
+
+-- 租约还是自己的才续期, 同时推后最大时间戳, 只增不减
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    if (tonumber(ARGV[3]) > tonumber(redis.call('get', KEYS[2]) or '0')) then
+        redis.call('set', KEYS[2], ARGV[3])
+    end
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
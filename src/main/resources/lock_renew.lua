@@ -0,0 +1,16 @@
+-- 看门狗批量续期: 一次续期本节点持有的多把锁
+-- KEYS[i]: 锁的 key
+-- ARGV[2i-1]: 第i把锁的持有者标识
+-- ARGV[2i]: 第i把锁的有效期(毫秒)
+-- 返回: 每把锁一个结果, 1代表续期成功, 0代表锁已经不是自己的了
+
+local result = {}
+for i = 1, #KEYS do
+    if (redis.call('hexists', KEYS[i], ARGV[2 * i - 1]) == 1) then
+        redis.call('pexpire', KEYS[i], ARGV[2 * i])
+        result[i] = 1
+    else
+        result[i] = 0
+    end
+end
+return result
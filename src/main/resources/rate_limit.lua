@@ -0,0 +1,40 @@
+-- 令牌桶限流
+-- KEYS[1]: 令牌桶 key (例如 seckill:limit:bucket:10), hash结构: tokens 剩余令牌数, ts 上次补充令牌的时间
+-- ARGV[1]: 每秒补充的令牌数
+-- ARGV[2]: 桶容量
+-- ARGV[3]: 当前时间(毫秒时间戳)
+-- ARGV[4]: 本次要取的令牌数
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+-- 1. 读取桶的状态, 桶不存在说明很久没有请求了, 按装满处理
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if (tokens == nil or ts == nil) then
+    tokens = capacity
+    ts = now
+end
+
+-- 2. 按上次到现在经过的时间补充令牌, 不超过桶容量
+-- (各节点时钟有偏差, 时间倒退时不补充, 也不把ts往回改)
+if (now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+-- 3. 令牌够就取走
+local allowed = 0
+if (tokens >= requested) then
+    tokens = tokens - requested
+    allowed = 1
+end
+
+-- 4. 写回桶的状态, 桶补满所需的时间之后自动过期
+redis.call('hmset', KEYS[1], 'tokens', tokens, 'ts', ts)
+redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+
+-- 5. 1:放行 0:限流
+return allowed
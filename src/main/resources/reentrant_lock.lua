@@ -0,0 +1,24 @@
+-- KEYS[1]: 锁的 key (例如 lock:order:10), hash结构: field 持有者标识 -> 重入次数, fence -> 本次持有的fencing token
+-- KEYS[2]: fencing token 序列 key (lock:fence:seq), 所有锁共用, 单调递增
+-- ARGV[1]: 当前线程的标识 (UUID + threadId)
+-- ARGV[2]: 锁的有效期(毫秒)
+-- 返回: {1, fencing token} 代表获取成功, {0, 锁的剩余有效期(毫秒)} 代表被别人持有
+
+-- 1. 锁不存在, 新的一次持有, 分配一个新的fencing token
+if (redis.call('exists', KEYS[1]) == 0) then
+    local token = redis.call('incr', KEYS[2])
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('hset', KEYS[1], 'fence', token)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return {1, token}
+end
+
+-- 2. 自己持有的(重入), 重入次数+1, 重置有效期, token不变
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return {1, tonumber(redis.call('hget', KEYS[1], 'fence'))}
+end
+
+-- 3. 被别人持有, 返回锁的剩余有效期(毫秒)
+return {0, redis.call('pttl', KEYS[1])}
@@ -0,0 +1,22 @@
+-- KEYS[1]: 锁的 key (例如 lock:order:10)
+-- ARGV[1]: 当前线程的标识 (UUID + threadId)
+-- ARGV[2]: 锁的有效期(毫秒)
+-- ARGV[3]: 锁释放的通知频道 (例如 lock:release:lock:order:10)
+
+-- 1. 锁不是自己的(可能已经过期被别人拿走了), 什么都不做
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return 0
+end
+
+-- 2. 重入次数-1
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if (count > 0) then
+    -- 3. 外层还持有锁, 重置有效期, 返回1
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+
+-- 4. 最外层释放, 删除锁, 通知正在等这把锁的线程, 返回2
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[3], 'released')
+return 2
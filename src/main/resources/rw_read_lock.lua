@@ -0,0 +1,44 @@
+-- KEYS[1]: 读写锁的 key (例如 lock:rw:cache:shop:1), hash结构: mode 读/写模式, 其他field 持有者标识 -> 重入次数
+-- KEYS[2]: 写者等待标记 key, 存在时新的读者不能进入(写优先)
+-- KEYS[3]: 读者租约 key, zset结构: 读者标识 -> 到期时间(毫秒, Redis的时钟). 每个读者有自己的有效期
+-- ARGV[1]: 当前线程的标识 (UUID + threadId)
+-- ARGV[2]: 锁的有效期(毫秒)
+
+-- 用Redis自己的时钟, 各个节点的时钟差多少都不影响读者的到期时间
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local ttl = tonumber(ARGV[2])
+local mode = redis.call('hget', KEYS[1], 'mode')
+
+-- 1. 自己已经持有(读锁重入, 或者持有写锁的线程再加读锁)
+if (mode ~= false and redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    if (mode == 'read') then
+        redis.call('zadd', KEYS[3], now + ttl, ARGV[1])
+    end
+    -- 整个key的有效期只延长不缩短, 不能把其他读者的有效期改短
+    if (redis.call('pttl', KEYS[1]) < ttl) then
+        redis.call('pexpire', KEYS[1], ttl)
+        redis.call('pexpire', KEYS[3], ttl)
+    end
+    return -1
+end
+
+-- 2. 没有锁或者是读模式, 并且没有写者在等, 和其他读者共享, 记下自己的到期时间
+if ((mode == false or mode == 'read') and redis.call('exists', KEYS[2]) == 0) then
+    redis.call('hset', KEYS[1], 'mode', 'read')
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('zadd', KEYS[3], now + ttl, ARGV[1])
+    if (redis.call('pttl', KEYS[1]) < ttl) then
+        redis.call('pexpire', KEYS[1], ttl)
+        redis.call('pexpire', KEYS[3], ttl)
+    end
+    return -1
+end
+
+-- 3. 写模式, 或者有写者在等, 返回需要等待的时间(毫秒)
+if (mode == false) then
+    return redis.call('pttl', KEYS[2])
+end
+return redis.call('pttl', KEYS[1])
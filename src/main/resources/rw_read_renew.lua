@@ -0,0 +1,31 @@
+-- 看门狗批量续期读写锁的读锁: 每个读者只延长自己的到期时间
+-- KEYS[2i-1]: 第i把锁的 key
+-- KEYS[2i]: 第i把锁的读者租约 key
+-- ARGV[2i-1]: 第i把锁的持有者标识
+-- ARGV[2i]: 第i把锁的有效期(毫秒)
+-- 返回: 每把锁一个结果, 1代表续期成功, 0代表锁已经不是自己的了
+
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local result = {}
+for i = 1, #KEYS / 2 do
+    local key = KEYS[2 * i - 1]
+    local readers = KEYS[2 * i]
+    local owner = ARGV[2 * i - 1]
+    local ttl = tonumber(ARGV[2 * i])
+    if (redis.call('hexists', key, owner) == 1) then
+        -- 持有写锁的线程再加的读锁不在读者租约里, 只延长整个key
+        if (redis.call('zscore', readers, owner)) then
+            redis.call('zadd', readers, now + ttl, owner)
+        end
+        if (redis.call('pttl', key) < ttl) then
+            redis.call('pexpire', key, ttl)
+            redis.call('pexpire', readers, ttl)
+        end
+        result[i] = 1
+    else
+        result[i] = 0
+    end
+end
+return result
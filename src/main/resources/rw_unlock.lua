@@ -0,0 +1,26 @@
+-- KEYS[1]: 读写锁的 key
+-- KEYS[2]: 读者租约 key
+-- ARGV[1]: 当前线程的标识 (UUID + threadId)
+-- ARGV[2]: 锁释放的通知频道
+
+-- 1. 锁不是自己的, 什么都不做
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return 0
+end
+
+-- 2. 重入次数-1, 减到0时移除自己和自己的读者租约
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if (count <= 0) then
+    redis.call('hdel', KEYS[1], ARGV[1])
+    redis.call('zrem', KEYS[2], ARGV[1])
+end
+
+-- 3. 还有其他持有者(除了mode之外还有field), 返回1. 有效期由各自的看门狗续期, 这里不改
+if (redis.call('hlen', KEYS[1]) > 1) then
+    return 1
+end
+
+-- 4. 最后一个持有者释放, 删除锁, 通知等待的读者和写者, 返回2
+redis.call('del', KEYS[1], KEYS[2])
+redis.call('publish', ARGV[2], 'released')
+return 2
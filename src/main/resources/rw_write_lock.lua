@@ -0,0 +1,51 @@
+-- KEYS[1]: 读写锁的 key, hash结构: mode 读/写模式, 其他field 持有者标识 -> 重入次数
+-- KEYS[2]: 写者等待标记 key
+-- KEYS[3]: 读者租约 key, zset结构: 读者标识 -> 到期时间(毫秒, Redis的时钟)
+-- ARGV[1]: 当前线程的标识 (UUID + threadId)
+-- ARGV[2]: 锁的有效期(毫秒)
+-- ARGV[3]: 写者等待标记的有效期(毫秒), 等待中的写者会不断刷新
+
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 1. 先清掉已经过期的读者: 读者所在的节点宕机后没人续期也没人释放, 不能让写者一直等下去
+local expired = redis.call('zrangebyscore', KEYS[3], '-inf', now)
+if (#expired > 0) then
+    redis.call('hdel', KEYS[1], unpack(expired))
+    redis.call('zremrangebyscore', KEYS[3], '-inf', now)
+    if (redis.call('hlen', KEYS[1]) <= 1) then
+        -- 只剩mode, 没有持有者了
+        redis.call('del', KEYS[1], KEYS[3])
+    end
+end
+
+local mode = redis.call('hget', KEYS[1], 'mode')
+
+-- 2. 没有锁, 直接加写锁, 清掉等待标记
+if (mode == false) then
+    redis.call('hset', KEYS[1], 'mode', 'write')
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    redis.call('del', KEYS[2])
+    return -1
+end
+
+-- 3. 自己持有写锁, 重入
+if (mode == 'write' and redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return -1
+end
+
+-- 4. 被读者或其他写者占用, 登记写者等待, 阻止新的读者进入
+redis.call('set', KEYS[2], ARGV[1], 'PX', ARGV[3])
+-- 返回需要等待的时间: 锁的剩余有效期, 读模式下最多等到最早的读者到期(到期的读者下次重试时会被清掉)
+local wait = redis.call('pttl', KEYS[1])
+if (mode == 'read') then
+    local first = redis.call('zrange', KEYS[3], 0, 0, 'WITHSCORES')
+    if (first[2] ~= nil) then
+        wait = math.min(wait, tonumber(first[2]) - now + 1)
+    end
+end
+return wait
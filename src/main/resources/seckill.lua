@@ -0,0 +1,37 @@
+-- KEYS[1]: 已下单用户集合 key (例如 seckill:order:10)
+-- KEYS[2]: 订单消息队列 key (stream.orders)
+-- KEYS[3]: 订单状态 key (例如 seckill:order:status:用户id:订单id)
+-- KEYS[4]: 库存 key (例如 seckill:stock:10)
+-- ARGV[1]: 用户id
+-- ARGV[2]: 优惠券id
+-- ARGV[3]: 订单id
+-- ARGV[4]: 下单时间(毫秒时间戳)
+-- ARGV[5]: 订单状态的有效期(秒)
+
+-- 1. 判断用户是否下过单(一人一单)
+if (redis.call('sismember', KEYS[1], ARGV[1]) == 1) then
+    -- 重复下单, 返回2
+    return 2
+end
+
+-- 2. 判断库存是否充足
+local stock = tonumber(redis.call('get', KEYS[4]))
+if (stock == nil) then
+    -- key不存在说明秒杀券还没预热, 返回3. 不能当作售罄, 否则会通知所有节点拒绝这张券
+    return 3
+end
+if (stock <= 0) then
+    -- 库存不足, 返回1
+    return 1
+end
+
+-- 3. 扣库存, 并把用户记入已下单集合
+redis.call('incrby', KEYS[4], -1)
+redis.call('sadd', KEYS[1], ARGV[1])
+-- 4. 发送订单到消息队列, 和扣库存在同一个脚本里, 要么都成功要么都不做
+-- XADD stream.orders * userId .. voucherId .. id .. createTime ..
+redis.call('xadd', KEYS[2], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3], 'createTime', ARGV[4])
+-- 5. 订单状态记为排队中, 落库后由消费者改成CREATED或FAILED
+redis.call('set', KEYS[3], 'PENDING', 'EX', ARGV[5])
+-- 6. 有下单资格, 返回0
+return 0
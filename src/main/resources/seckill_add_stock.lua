@@ -0,0 +1,7 @@
+-- 补充秒杀库存: 库存key存在时才增加, 不存在时不创建, 留给预热从数据库加载
+-- KEYS[1]: 库存key (例如 seckill:stock:10), 分片库存时是一个分片的库存key (例如 seckill:stock:{10:3})
+-- ARGV[1]: 补充的数量
+if (redis.call('exists', KEYS[1]) == 0) then
+    return nil
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
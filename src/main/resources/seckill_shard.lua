@@ -0,0 +1,28 @@
+-- 分片库存的秒杀脚本, 只操作用户所在的一个分片. 两个key带同样的hash tag {优惠券id:分片号}, 集群下在同一个slot
+-- KEYS[1]: 本分片已下单用户集合 key (例如 seckill:order:{10:3})
+-- KEYS[2]: 本分片库存 key (例如 seckill:stock:{10:3})
+-- ARGV[1]: 用户id
+
+-- 1. 判断用户是否下过单(一人一单). 同一个用户总是落到同一个分片, 只查这一个集合就够了
+if (redis.call('sismember', KEYS[1], ARGV[1]) == 1) then
+    -- 重复下单, 返回2
+    return 2
+end
+
+-- 2. 判断库存key是否存在
+local stock = tonumber(redis.call('get', KEYS[2]))
+if (stock == nil) then
+    -- key不存在说明秒杀券还没预热, 返回3
+    return 3
+end
+
+-- 3. 先把用户记入已下单集合, 占住一人一单的名额, 同一用户的并发请求在这里就会返回2
+redis.call('sadd', KEYS[1], ARGV[1])
+if (stock <= 0) then
+    -- 4. 本分片卖完了, 返回4, 由调用方去兄弟分片扣库存, 都扣不到再把用户从集合里移除
+    return 4
+end
+
+-- 5. 扣本分片的库存, 返回0
+redis.call('incrby', KEYS[2], -1)
+return 0
@@ -0,0 +1,9 @@
+-- 从一个兄弟分片扣一件库存
+-- KEYS[1]: 分片库存 key (例如 seckill:stock:{10:5})
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    -- 这个分片也卖完了(或还没预热), 返回0
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,45 @@
+package com.hmdp;
+
+import com.hmdp.utils.BloomFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+// 布隆过滤器的正确性和误判率, 不需要Redis
+class BloomFilterTests {
+    private static final int N = 100000;
+    private static final double FPP = 0.01;
+
+    @Test // 放进去的id一定能查到, 包括连续的id和负数
+    void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(N, FPP);
+        for (long id = -N / 2; id < N / 2; id++) {
+            filter.put(id);
+        }
+        for (long id = -N / 2; id < N / 2; id++) {
+            Assertions.assertTrue(filter.mightContain(id), "id " + id);
+        }
+    }
+
+    @Test // 放满预计数量时, 没放进去的id误判率接近fpp
+    void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(N, FPP);
+        for (long id = 1; id <= N; id++) {
+            filter.put(id);
+        }
+        int falsePositives = 0;
+        for (long id = N + 1; id <= 2L * N; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / N;
+        Assertions.assertTrue(rate < FPP * 1.5, "误判率 " + rate);
+    }
+
+    @Test // 空的过滤器什么都不包含
+    void testEmpty() {
+        BloomFilter filter = new BloomFilter(N, FPP);
+        Assertions.assertFalse(filter.mightContain(1L));
+        Assertions.assertTrue(filter.hashCount() > 0);
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBinaryCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+// 缓存编解码器的正确性和编码大小, 不需要Redis
+class CacheCodecTests {
+
+    private final ShopBinaryCodec binaryCodec = new ShopBinaryCodec();
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    @Test
+    void testShopBinaryCodecRoundTrip() {
+        Shop shop = shop();
+        Assertions.assertEquals(shop, binaryCodec.decode(binaryCodec.encode(shop), Shop.class));
+        // 为null的字段不占空间, 解码后还是null
+        Shop empty = new Shop();
+        empty.setId(-1L);
+        Assertions.assertEquals(empty, binaryCodec.decode(binaryCodec.encode(empty), Shop.class));
+    }
+
+    @Test // 二进制编码比json小
+    void testBinarySmallerThanJson() {
+        Shop shop = shop();
+        Assertions.assertTrue(binaryCodec.encode(shop).length < jsonCodec.encode(shop).length);
+    }
+
+    @Test // 逻辑过期缓存: 信封(13字节头部 + 编码后的数据)比旧的RedisData json小, 二进制信封最小
+    void testEnvelopeSmallerThanRedisData() {
+        Shop shop = shop();
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 13, 17, 32, 49));
+        redisData.setRebuildMillis(20L);
+        int legacy = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8).length;
+        int json = jsonCodec.encode(shop).length + 13;
+        int binary = binaryCodec.encode(shop).length + 13;
+        Assertions.assertTrue(json < legacy, "json信封 " + json + " 字节, RedisData " + legacy + " 字节");
+        Assertions.assertTrue(binary < json, "二进制信封 " + binary + " 字节, json信封 " + json + " 字节");
+    }
+
+    static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123000000));
+        return shop;
+    }
+}
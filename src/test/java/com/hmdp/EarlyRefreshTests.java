@@ -0,0 +1,42 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+// 逻辑过期缓存的XFetch提前刷新判断, 不需要Redis
+class EarlyRefreshTests {
+    private static final long NOW = 1780000000000L;
+
+    @Test // 没有重建耗时时不提前刷新, 由 CacheClient 换成默认耗时
+    void testNoRebuildMillis() {
+        Assertions.assertFalse(CacheClient.shouldRefreshEarly(NOW, NOW + 1, 0, 1.0, 0.001));
+        Assertions.assertTrue(CacheClient.shouldRefreshEarly(NOW, NOW + 1, 100, 1.0, 0.001));
+    }
+
+    @Test // 离过期越近、重建越慢越容易提前刷新
+    void testDistanceToExpiry() {
+        // ln(0.5) * 100 约等于 -69毫秒
+        Assertions.assertFalse(CacheClient.shouldRefreshEarly(NOW, NOW + 10000, 100, 1.0, 0.5));
+        Assertions.assertTrue(CacheClient.shouldRefreshEarly(NOW, NOW + 50, 100, 1.0, 0.5));
+        Assertions.assertTrue(CacheClient.shouldRefreshEarly(NOW, NOW + 10000, 20000, 1.0, 0.5));
+        // 已经过期
+        Assertions.assertTrue(CacheClient.shouldRefreshEarly(NOW, NOW, 100, 1.0, 0.999));
+        // 随机数是0时不会算出NaN
+        Assertions.assertTrue(CacheClient.shouldRefreshEarly(NOW, NOW + 10000, 100, 1.0, 0));
+    }
+
+    @Test // 剩余时间 = 重建耗时 * beta * x 时, 提前刷新的概率是 e^-x
+    void testProbability() {
+        Random random = new Random(42);
+        int rounds = 100000, refreshed = 0;
+        for (int i = 0; i < rounds; i++) {
+            if (CacheClient.shouldRefreshEarly(NOW, NOW + 200, 100, 2.0, random.nextDouble())) {
+                refreshed++;
+            }
+        }
+        Assertions.assertEquals(Math.exp(-1), (double) refreshed / rounds, 0.01);
+    }
+}
@@ -4,17 +4,27 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockManager;
+import com.hmdp.utils.SnowflakeIdWorker;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
+@Slf4j
 @SpringBootTest
 class HmDianPingApplicationTests {
     @Resource
@@ -23,6 +33,12 @@ class HmDianPingApplicationTests {
     private CacheClient cacheClient;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+    @Resource
+    private SeckillStockManager seckillStockManager;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
@@ -66,4 +82,89 @@ class HmDianPingApplicationTests {
         // 8. 打印总计耗时（结束时间 - 开始时间）
         System.out.println("time = " + (end - begin));
     }
+
+    @Test // 对比每个id一次INCR、号段模式和雪花算法的吞吐量, 三种方式都要在多线程下发出不重复、单线程内递增的id
+    void testIdSegmentThroughput() throws InterruptedException {
+        long incr = benchmarkIdWorker(new RedisIdWorker(stringRedisTemplate, 0));
+        long segment = benchmarkIdWorker(new RedisIdWorker(stringRedisTemplate, 1000));
+        RedisIdWorker snowflake = new RedisIdWorker(stringRedisTemplate, 0, snowflakeIdWorker);
+        snowflake.switchGenerator("bench", RedisIdWorker.Generator.SNOWFLAKE);
+        Assertions.assertTrue(SnowflakeIdWorker.isSnowflake(snowflake.nextId("bench")));
+        long local = benchmarkIdWorker(snowflake);
+        log.info("id生成吞吐量: incr = {} ids/s, 号段 = {} ids/s, 雪花算法 = {} ids/s", incr, segment, local);
+    }
+
+    private long benchmarkIdWorker(RedisIdWorker idWorker) throws InterruptedException {
+        int threads = 300, perThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        // 工作线程里的断言失败不会让测试失败, 先记下来, 在主线程里断言
+        AtomicInteger notIncreasing = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            long last = -1;
+            for (int i = 0; i < perThread; i++) {
+                long id = idWorker.nextId("bench");
+                if (id <= last) {
+                    notIncreasing.incrementAndGet();
+                }
+                last = id;
+                ids.add(id);
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long cost = Math.max(System.currentTimeMillis() - begin, 1);
+        // id不能重复, 同一个线程拿到的id递增
+        Assertions.assertEquals(threads * perThread, ids.size());
+        Assertions.assertEquals(0, notIncreasing.get());
+        stringRedisTemplate.delete(stringRedisTemplate.keys("icr:bench:*"));
+        return threads * perThread * 1000L / cost;
+    }
+
+    @Test // 对比单key库存和分片库存在高并发下的吞吐量
+    void testStockShardingThroughput() throws InterruptedException {
+        // 用两个不存在的优惠券id压测, 订单写到单独的stream里, 不会被消费者落库
+        long single = benchmarkSeckillStock(-1L, 1);
+        long sharded = benchmarkSeckillStock(-2L, 8);
+        log.info("秒杀库存吞吐量: 单key = {} ops/s, 8个分片 = {} ops/s", single, sharded);
+    }
+
+    private long benchmarkSeckillStock(Long voucherId, int shards) throws InterruptedException {
+        int threads = 300, perThread = 100;
+        String streamKey = "stream.orders.bench";
+        // 1. 库存正好等于请求数, 分片时有的分片会先卖完, 要靠去兄弟分片扣库存才能全部卖出
+        seckillStockManager.initStock(voucherId, threads * perThread, shards);
+        AtomicLong userIds = new AtomicLong();
+        AtomicInteger success = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            for (int i = 0; i < perThread; i++) {
+                long userId = userIds.incrementAndGet();
+                if (seckillStockManager.tryAcquire(voucherId, userId, userId, streamKey) == SeckillStockManager.OK) {
+                    success.incrementAndGet();
+                }
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long cost = Math.max(System.currentTimeMillis() - begin, 1);
+        // 2. 不能超卖也不能少卖, 每个成功的请求都发出了订单消息
+        Assertions.assertEquals(threads * perThread, success.get());
+        Assertions.assertEquals(SeckillStockManager.SOLD_OUT, seckillStockManager.tryAcquire(voucherId, 0L, 0L, streamKey));
+        Assertions.assertEquals(SeckillStockManager.DUPLICATE, seckillStockManager.tryAcquire(voucherId, 1L, 1L, streamKey));
+        Assertions.assertEquals(threads * perThread, stringRedisTemplate.opsForStream().size(streamKey));
+        // 3. 清理压测数据
+        stringRedisTemplate.delete(stringRedisTemplate.keys(SECKILL_STOCK_KEY + "*" + voucherId + "*"));
+        stringRedisTemplate.delete(stringRedisTemplate.keys(SECKILL_ORDER_KEY + "*" + voucherId + "*"));
+        stringRedisTemplate.delete(streamKey);
+        return threads * perThread * 1000L / cost;
+    }
 }
@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedLock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// 用本地Redis的5个库(db1~db5)模拟5个独立的Redis节点
+class RedLockTests {
+    private static final String NAME = "test:redlock";
+    private static final String KEY = "lock:" + NAME;
+
+    private final List<LettuceConnectionFactory> factories = new ArrayList<>();
+    private final List<StringRedisTemplate> nodes = new ArrayList<>();
+    private final ExecutorService es = Executors.newFixedThreadPool(16);
+
+    @BeforeEach
+    void setUp() {
+        for (int db = 1; db <= 5; db++) {
+            nodes.add(template(6379, db));
+        }
+        nodes.forEach(node -> node.delete(KEY));
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(node -> node.delete(KEY));
+        factories.forEach(LettuceConnectionFactory::destroy);
+        es.shutdownNow();
+    }
+
+    @Test // 所有节点都加上锁, 释放时所有节点都释放
+    void testLockAndUnlockAllNodes() {
+        RedLock lock = new RedLock(NAME, nodes, es, 50);
+        Assertions.assertTrue(lock.tryLock(10));
+        Assertions.assertTrue(lock.getValidityMillis() > 0);
+        nodes.forEach(node -> Assertions.assertTrue(node.hasKey(KEY)));
+        // 其他客户端拿不到
+        Assertions.assertFalse(new RedLock(NAME, nodes, es, 50).tryLock(10));
+        lock.unlock();
+        nodes.forEach(node -> Assertions.assertFalse(node.hasKey(KEY)));
+    }
+
+    @Test // 少数节点被别人占着, 仍然能拿到多数派
+    void testMinorityHeldByOther() {
+        nodes.get(0).opsForValue().set(KEY, "other");
+        nodes.get(1).opsForValue().set(KEY, "other");
+        RedLock lock = new RedLock(NAME, nodes, es, 50);
+        Assertions.assertTrue(lock.tryLock(10));
+        lock.unlock();
+        // 别人的锁不会被释放
+        Assertions.assertEquals("other", nodes.get(0).opsForValue().get(KEY));
+        Assertions.assertFalse(nodes.get(2).hasKey(KEY));
+    }
+
+    @Test // 多数节点被别人占着, 加锁失败, 并且把已经加上的少数节点释放掉
+    void testMajorityHeldByOther() {
+        for (int i = 0; i < 3; i++) {
+            nodes.get(i).opsForValue().set(KEY, "other");
+        }
+        RedLock lock = new RedLock(NAME, nodes, es, 50);
+        Assertions.assertFalse(lock.tryLock(10));
+        Assertions.assertFalse(nodes.get(3).hasKey(KEY));
+        Assertions.assertFalse(nodes.get(4).hasKey(KEY));
+    }
+
+    @Test // 不足1秒的有效期按毫秒设置, 不会被截断成0
+    void testSubSecondLease() throws InterruptedException {
+        RedLock lock = new RedLock(NAME, nodes, es, 50);
+        Assertions.assertTrue(lock.tryLock(0, 500, TimeUnit.MILLISECONDS));
+        nodes.forEach(node -> {
+            Long ttl = node.getExpire(KEY, TimeUnit.MILLISECONDS);
+            Assertions.assertTrue(ttl > 0 && ttl <= 500);
+        });
+        lock.unlock();
+    }
+
+    @Test // 有节点宕机(连不上), 只要多数节点正常就能加锁
+    void testNodeDown() {
+        List<StringRedisTemplate> withDown = new ArrayList<>(nodes.subList(0, 3));
+        withDown.add(template(1, 0));
+        withDown.add(template(2, 0));
+        RedLock lock = new RedLock(NAME, withDown, es, 200);
+        Assertions.assertTrue(lock.tryLock(10));
+        lock.unlock();
+    }
+
+    private StringRedisTemplate template(int port, int db) {
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration("localhost", port);
+        config.setDatabase(db);
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(config);
+        factory.afterPropertiesSet();
+        factories.add(factory);
+        return new StringRedisTemplate(factory);
+    }
+}
@@ -0,0 +1,248 @@
+package com.hmdp;
+
+import com.hmdp.utils.LockReleaseSubscriber;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.LockWatchdog;
+import com.hmdp.utils.RedisReadWriteLock;
+import com.hmdp.utils.RedisReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisServerCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+@Slf4j
+@SpringBootTest
+class RedisLockTests {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private LockWatchdog lockWatchdog;
+    @Resource
+    private LockReleaseSubscriber lockReleaseSubscriber;
+    private ExecutorService es = Executors.newFixedThreadPool(4);
+
+    @Test // 同一个线程可以重入, 最外层释放后锁才被删除
+    void testReentrant() {
+        RedisReentrantLock lock = new RedisReentrantLock("test:reentrant", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+        Assertions.assertTrue(lock.tryLock(10));
+        Assertions.assertTrue(lock.tryLock(10));
+        lock.unlock();
+        Assertions.assertTrue(stringRedisTemplate.hasKey("lock:test:reentrant"));
+        lock.unlock();
+        Assertions.assertFalse(stringRedisTemplate.hasKey("lock:test:reentrant"));
+    }
+
+    @Test // 其他线程拿不到锁
+    void testMutualExclusion() throws Exception {
+        RedisReentrantLock lock = new RedisReentrantLock("test:mutex", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+        Assertions.assertTrue(lock.tryLock(10));
+        try {
+            Boolean other = es.submit(() ->
+                    new RedisReentrantLock("test:mutex", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber).tryLock(10)).get();
+            Assertions.assertFalse(other);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test // 有效期只有3秒, 业务执行了6秒, 看门狗续期后锁还在
+    void testWatchdogRenewal() throws InterruptedException {
+        RedisReentrantLock lock = new RedisReentrantLock("test:watchdog", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+        Assertions.assertTrue(lock.tryLock(3));
+        try {
+            Thread.sleep(6000);
+            Long ttl = stringRedisTemplate.getExpire("lock:test:watchdog", TimeUnit.MILLISECONDS);
+            Assertions.assertNotNull(ttl);
+            Assertions.assertTrue(ttl > 0);
+        } finally {
+            lock.unlock();
+        }
+        Assertions.assertEquals(0, lockWatchdog.size());
+    }
+
+    @Test // 等待模式: 锁一释放等待者马上拿到, 不用等到锁过期
+    void testWaitWakesOnRelease() throws Exception {
+        RedisReentrantLock lock = new RedisReentrantLock("test:wait", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+        Assertions.assertTrue(lock.tryLock(30));
+        Future<Long> waiter = es.submit(() -> {
+            RedisReentrantLock other = new RedisReentrantLock("test:wait", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+            long begin = System.currentTimeMillis();
+            boolean locked = other.tryLock(5, 30, TimeUnit.SECONDS);
+            long cost = System.currentTimeMillis() - begin;
+            if (locked) {
+                other.unlock();
+            }
+            return locked ? cost : -1L;
+        });
+        Thread.sleep(500);
+        lock.unlock();
+        long cost = waiter.get();
+        // 拿到了锁, 而且是在释放后很快拿到的(锁的有效期是30秒)
+        Assertions.assertTrue(cost >= 0);
+        Assertions.assertTrue(cost < 2000);
+    }
+
+    @Test // fencing token单调递增, 锁过期被别人拿走后旧的token校验失败
+    void testFencingToken() throws Exception {
+        RedisReentrantLock lock = new RedisReentrantLock("test:fence", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+        Assertions.assertTrue(lock.tryLock(10));
+        long token = lock.getFencingToken();
+        Assertions.assertTrue(lock.checkFencingToken(token));
+        // 模拟GC停顿期间锁过期
+        stringRedisTemplate.delete("lock:test:fence");
+        long newToken = es.submit(() -> {
+            RedisReentrantLock other = new RedisReentrantLock("test:fence", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+            Assertions.assertTrue(other.tryLock(10));
+            long t = other.getFencingToken();
+            Assertions.assertTrue(other.checkFencingToken(t));
+            other.unlock();
+            return t;
+        }).get();
+        Assertions.assertTrue(newToken > token);
+        Assertions.assertFalse(lock.checkFencingToken(token));
+        lock.unlock();
+    }
+
+    @Test // 读锁共享, 写锁互斥; 写者等待时新读者不能进入
+    void testReadWriteLock() throws Exception {
+        RedisReadWriteLock rw = newReadWriteLock("test:rw");
+        Assertions.assertTrue(rw.readLock().tryLock(10));
+        try {
+            // 另一个读者可以同时持有读锁
+            Assertions.assertTrue(es.submit(() -> {
+                ILock read = newReadWriteLock("test:rw").readLock();
+                boolean locked = read.tryLock(10);
+                if (locked) {
+                    read.unlock();
+                }
+                return locked;
+            }).get());
+            // 写者拿不到, 并留下等待标记
+            Assertions.assertFalse(es.submit(() -> newReadWriteLock("test:rw").writeLock().tryLock(10)).get());
+            // 写者在等, 新来的读者也拿不到(写优先)
+            Assertions.assertFalse(es.submit(() -> newReadWriteLock("test:rw").readLock().tryLock(10)).get());
+        } finally {
+            rw.readLock().unlock();
+        }
+        // 读者全部释放后写者能拿到
+        Assertions.assertTrue(es.submit(() -> {
+            ILock write = newReadWriteLock("test:rw").writeLock();
+            boolean locked = write.tryLock(1, 10, TimeUnit.SECONDS);
+            if (locked) {
+                write.unlock();
+            }
+            return locked;
+        }).get());
+    }
+
+    @Test // 读者所在的节点宕机(不续期也不释放), 其他读者还在续期整个key, 写者也只用等这个读者自己的有效期
+    void testCrashedReaderExpires() throws Exception {
+        String key = "lock:rw:test:crash";
+        // 1. 模拟一个宕机的读者: 1秒后到期, 整个key还有30秒
+        Long redisNow = stringRedisTemplate.execute((RedisCallback<Long>) RedisServerCommands::time);
+        stringRedisTemplate.opsForHash().put(key, "mode", "read");
+        stringRedisTemplate.opsForHash().put(key, "crashed-node-1", "1");
+        stringRedisTemplate.opsForZSet().add(key + ":readers", "crashed-node-1", redisNow + 1000);
+        stringRedisTemplate.expire(key, 30, TimeUnit.SECONDS);
+        stringRedisTemplate.expire(key + ":readers", 30, TimeUnit.SECONDS);
+        // 2. 活着的读者加锁再释放, 不会把宕机读者的有效期延长到30秒
+        ILock read = newReadWriteLock("test:crash").readLock();
+        Assertions.assertTrue(read.tryLock(30, 30, TimeUnit.SECONDS));
+        read.unlock();
+        Assertions.assertTrue(stringRedisTemplate.hasKey(key));
+        // 3. 写者等宕机读者到期后拿到锁
+        long begin = System.currentTimeMillis();
+        Assertions.assertTrue(es.submit(() -> {
+            ILock write = newReadWriteLock("test:crash").writeLock();
+            boolean locked = write.tryLock(5, 10, TimeUnit.SECONDS);
+            if (locked) {
+                write.unlock();
+            }
+            return locked;
+        }).get());
+        Assertions.assertTrue(System.currentTimeMillis() - begin < 5000);
+        Assertions.assertFalse(stringRedisTemplate.hasKey(key + ":readers"));
+    }
+
+    @Test // 读多写少(95%读)时读写锁和互斥锁的吞吐量对比, 临界区模拟2ms的查库
+    void benchmarkReadWriteLock() throws InterruptedException {
+        int threads = 50, ops = 2000;
+        long rwMillis = runWorkload(threads, ops, true, read -> {
+            RedisReadWriteLock rw = newReadWriteLock("test:bench:rw");
+            return read ? rw.readLock() : rw.writeLock();
+        });
+        long mutexMillis = runWorkload(threads, ops, false, read ->
+                new RedisReentrantLock("test:bench:mutex", stringRedisTemplate, lockWatchdog, lockReleaseSubscriber));
+        log.info("{}次加锁, 读写锁耗时{}ms({} ops/s), 互斥锁耗时{}ms({} ops/s)",
+                ops, rwMillis, ops * 1000L / Math.max(rwMillis, 1), mutexMillis, ops * 1000L / Math.max(mutexMillis, 1));
+        // 读者可以并发, 读写锁要比互斥锁快
+        Assertions.assertTrue(rwMillis < mutexMillis, "读写锁" + rwMillis + "ms, 互斥锁" + mutexMillis + "ms");
+    }
+
+    /**
+     * @param sharedRead 读操作能否和其他读操作并发, 互斥锁时为false
+     * @return 耗时(毫秒)
+     */
+    private long runWorkload(int threads, int ops, boolean sharedRead, Function<Boolean, ILock> lockOf)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(ops);
+        AtomicInteger failed = new AtomicInteger();
+        // 临界区里的读者和写者数量, 写者在时不能有别人, 读者在时不能有写者
+        AtomicInteger readers = new AtomicInteger();
+        AtomicInteger writers = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < ops; i++) {
+            pool.submit(() -> {
+                try {
+                    boolean read = ThreadLocalRandom.current().nextInt(100) < 95;
+                    ILock lock = lockOf.apply(read);
+                    if (!lock.tryLock(30, 10, TimeUnit.SECONDS)) {
+                        failed.incrementAndGet();
+                        return;
+                    }
+                    boolean shared = read && sharedRead;
+                    AtomicInteger holders = shared ? readers : writers;
+                    try {
+                        int held = holders.incrementAndGet();
+                        if (shared ? writers.get() > 0 : held > 1 || readers.get() > 0) {
+                            violations.incrementAndGet();
+                        }
+                        Thread.sleep(2);
+                    } finally {
+                        holders.decrementAndGet();
+                        lock.unlock();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.currentTimeMillis() - begin;
+        pool.shutdown();
+        Assertions.assertEquals(0, failed.get());
+        Assertions.assertEquals(0, violations.get());
+        return cost;
+    }
+
+    private RedisReadWriteLock newReadWriteLock(String name) {
+        return new RedisReadWriteLock(name, stringRedisTemplate, lockWatchdog, lockReleaseSubscriber);
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderJournal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// 订单溢写日志的追加、重放和消息id索引, 用临时文件, 不需要Redis和数据库
+class SeckillOrderJournalTests {
+    private static final int CAPACITY = 64;
+
+    @TempDir
+    Path dir;
+    private SeckillOrderJournal journal;
+
+    @BeforeEach
+    void setUp() {
+        journal = open();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(journal, "destroy");
+    }
+
+    @Test // 追加的订单按顺序读出来, 下单时间精确到毫秒
+    void testAppendAndPeek() {
+        LocalDateTime createTime = LocalDateTime.of(2026, 10, 18, 20, 0, 0, 123000000);
+        Assertions.assertTrue(journal.append(Collections.singletonList(entry(1, createTime))));
+        List<SeckillOrderJournal.Entry> entries = journal.peek(10);
+        Assertions.assertEquals(1, entries.size());
+        Assertions.assertEquals(1L, entries.get(0).getOrder().getId());
+        Assertions.assertEquals(createTime, entries.get(0).getOrder().getCreateTime());
+        Assertions.assertEquals(recordId(1), entries.get(0).getRecordId());
+    }
+
+    @Test // 重放后的消息id从索引里移除, 环形缓冲区绕回来之后索引仍然正确
+    void testIndexAcrossWrapAround() {
+        long next = 0;
+        for (int round = 0; round < 10; round++) {
+            List<SeckillOrderJournal.Entry> batch = new ArrayList<>();
+            for (int i = 0; i < CAPACITY / 2; i++) {
+                batch.add(entry(next++, null));
+            }
+            Assertions.assertTrue(journal.append(batch));
+            for (SeckillOrderJournal.Entry entry : batch) {
+                Assertions.assertTrue(journal.contains(entry.getRecordId()));
+            }
+            // 每轮重放到只剩最新的 CAPACITY/4 条
+            journal.commit((int) journal.size() - CAPACITY / 4);
+        }
+        Assertions.assertEquals(CAPACITY / 4, journal.size());
+        for (long id = 0; id < next; id++) {
+            Assertions.assertEquals(id >= next - CAPACITY / 4, journal.contains(recordId(id)), "id " + id);
+        }
+    }
+
+    @Test // 日志满了一条都不写
+    void testFull() {
+        List<SeckillOrderJournal.Entry> batch = new ArrayList<>();
+        for (int i = 0; i <= CAPACITY; i++) {
+            batch.add(entry(i, null));
+        }
+        Assertions.assertFalse(journal.append(batch));
+        Assertions.assertEquals(0, journal.size());
+        Assertions.assertFalse(journal.contains(recordId(0)));
+    }
+
+    @Test // 重启后从文件里恢复没重放完的订单和索引
+    void testRecover() {
+        journal.append(Arrays.asList(entry(1, null), entry(2, null)));
+        journal.commit(1);
+        ReflectionTestUtils.invokeMethod(journal, "destroy");
+        journal = open();
+        Assertions.assertEquals(1, journal.size());
+        Assertions.assertFalse(journal.contains(recordId(1)));
+        Assertions.assertTrue(journal.contains(recordId(2)));
+    }
+
+    private SeckillOrderJournal open() {
+        SeckillOrderJournal journal = new SeckillOrderJournal();
+        ReflectionTestUtils.setField(journal, "path", dir.resolve("orders.journal").toString());
+        ReflectionTestUtils.setField(journal, "capacity", CAPACITY);
+        ReflectionTestUtils.invokeMethod(journal, "init");
+        return journal;
+    }
+
+    private static SeckillOrderJournal.Entry entry(long id, LocalDateTime createTime) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(id);
+        order.setVoucherId(10L);
+        order.setCreateTime(createTime);
+        return new SeckillOrderJournal.Entry(order, recordId(id));
+    }
+
+    // 同一毫秒里有多条消息, 索引要同时比较毫秒和序号
+    private static RecordId recordId(long id) {
+        return RecordId.of(1780000000000L + id / 4, id % 4);
+    }
+}
@@ -0,0 +1,137 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// 用可以回拨的时钟和mock的Redis测试租约和时钟回拨, 不需要Redis
+class SnowflakeIdWorkerTests {
+    private static final long NOW = 1780000000000L;
+    private static final long MAX_BORROW_MILLIS = 1000;
+
+    private final AtomicLong now = new AtomicLong(NOW);
+    private StringRedisTemplate redis;
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redis = Mockito.mock(StringRedisTemplate.class);
+        // 租约脚本(4个参数)在没有上一个持有者的记录时, 从 发出命令的时间 + maxBorrowMillis 开始
+        when(redis.execute(any(RedisScript.class), anyList(), any(), any(), any(), any())).thenAnswer(invocation ->
+                Long.parseLong(invocation.getArgument(4)) + Long.parseLong(invocation.getArgument(5)));
+        worker = new SnowflakeIdWorker(redis);
+        ReflectionTestUtils.setField(worker, "leaseTtlSeconds", 30L);
+        ReflectionTestUtils.setField(worker, "maxBorrowMillis", MAX_BORROW_MILLIS);
+        ReflectionTestUtils.setField(worker, "clock", (LongSupplier) now::get);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(worker, "destroy");
+    }
+
+    @Test // hmdp.id.snowflake-prefixes 为空(默认)时启动不租worker id
+    @SuppressWarnings("unchecked")
+    void testNoLeaseUntilStarted() {
+        RedisIdWorker idWorker = new RedisIdWorker(redis, 0, worker);
+        ReflectionTestUtils.setField(idWorker, "snowflakePrefixes", "");
+        ReflectionTestUtils.invokeMethod(idWorker, "init");
+        Assertions.assertEquals(-1, worker.getWorkerId());
+        Assertions.assertThrows(IllegalStateException.class, worker::nextId);
+        verify(redis, never()).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+    }
+
+    @Test // 有业务切换到雪花算法时同步租到worker id, 马上就能发号
+    void testLeaseOnSwitch() {
+        RedisIdWorker idWorker = new RedisIdWorker(redis, 0, worker);
+        idWorker.switchGenerator("order", RedisIdWorker.Generator.SNOWFLAKE);
+        Assertions.assertTrue(worker.getWorkerId() >= 0);
+        long id = idWorker.nextId("order");
+        Assertions.assertTrue(SnowflakeIdWorker.isSnowflake(id));
+        Assertions.assertEquals(worker.getWorkerId(), SnowflakeIdWorker.decode(id).getWorkerId());
+    }
+
+    @Test // 所有worker id都被占用时切换失败, 业务继续用Redis发号
+    @SuppressWarnings("unchecked")
+    void testNoFreeWorkerId() {
+        when(redis.execute(any(RedisScript.class), anyList(), any(), any(), any(), any())).thenReturn(-1L);
+        RedisIdWorker idWorker = new RedisIdWorker(redis, 0, worker);
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> idWorker.switchGenerator("order", RedisIdWorker.Generator.SNOWFLAKE));
+        Assertions.assertEquals(-1, worker.getWorkerId());
+    }
+
+    @Test // 接手租约后从 租约脚本返回的时间戳 开始发号, 不会和上一个持有者发过的时间戳重复
+    void testLeaseHandover() {
+        worker.start();
+        Assertions.assertEquals(NOW + MAX_BORROW_MILLIS, millis(worker.nextId()));
+    }
+
+    @Test // 上一个持有者的时钟比本节点快时, 从它记下的最大时间戳之后开始, 而不是本节点的时间
+    @SuppressWarnings("unchecked")
+    void testLeaseHandoverClockSkew() {
+        long previousHighWater = NOW + TimeUnit.SECONDS.toMillis(45);
+        when(redis.execute(any(RedisScript.class), anyList(), any(), any(), any(), any())).thenReturn(previousHighWater + 1);
+        worker.start();
+        Assertions.assertEquals(previousHighWater + 1, millis(worker.nextId()));
+    }
+
+    @Test // 时钟回拨时继续用上次的时间戳, id仍然递增
+    void testClockRollback() {
+        worker.start();
+        now.addAndGet(MAX_BORROW_MILLIS + 10);
+        long before = worker.nextId();
+        now.addAndGet(-5);
+        long after = worker.nextId();
+        Assertions.assertTrue(after > before);
+        Assertions.assertEquals(millis(before), millis(after));
+        // 时钟追上来之后用新的时间戳
+        now.addAndGet(10);
+        Assertions.assertEquals(now.get(), millis(worker.nextId()));
+    }
+
+    @Test // 本地估算的租约到期后停止发号
+    void testExpiredLease() {
+        worker.start();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        Assertions.assertThrows(IllegalStateException.class, worker::nextId);
+    }
+
+    @Test // 续期失败说明租约被别人拿走了, 心跳重新租一个, 并且不会和新的持有者重复
+    @SuppressWarnings("unchecked")
+    void testRenewFailed() {
+        worker.start();
+        long before = worker.nextId();
+        // 续期脚本(3个参数)返回0: 租约已经不是自己的了
+        when(redis.execute(any(RedisScript.class), anyList(), any(), any(), any())).thenReturn(0L);
+        now.addAndGet(TimeUnit.SECONDS.toMillis(10));
+        ReflectionTestUtils.invokeMethod(worker, "heartbeat");
+        Assertions.assertTrue(worker.getWorkerId() >= 0);
+        long after = worker.nextId();
+        Assertions.assertEquals(now.get() + MAX_BORROW_MILLIS, millis(after));
+        Assertions.assertTrue(millis(after) > millis(before));
+    }
+
+    private static long millis(long id) {
+        RedisIdWorker.DecodedId decoded = SnowflakeIdWorker.decode(id);
+        return decoded.getTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+// 同步下单 + 唯一索引实现一人一单, 需要 tb_voucher_order 上有 uk_user_voucher 索引
+@SpringBootTest(properties = {"hmdp.seckill.async=false", "hmdp.seckill.one-per-user=unique-index"})
+class VoucherOrderConcurrencyTests {
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    private ExecutorService es = Executors.newFixedThreadPool(500);
+
+    @Test // 300个用户每人同时抢3次, 库存100: 不能超卖, 也不能一人多单
+    void testUniqueIndexNoOversellNoDuplicate() throws InterruptedException {
+        int stock = 100, users = 300, attempts = 3;
+        // 1. 新建一张正在秒杀中的券
+        Voucher voucher = new Voucher()
+                .setShopId(1L).setTitle("并发测试券").setPayValue(100L).setActualValue(100L)
+                .setType(1).setStatus(1).setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusHours(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+
+        // 2. 并发下单
+        AtomicInteger success = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(users * attempts);
+        for (int i = 0; i < users * attempts; i++) {
+            long userId = 1_000_000L + i % users;
+            es.submit(() -> {
+                try {
+                    UserDTO user = new UserDTO();
+                    user.setId(userId);
+                    UserHolder.saveUser(user);
+                    Result result = voucherOrderService.seckillVoucher(voucherId);
+                    if (Boolean.TRUE.equals(result.getSuccess())) {
+                        success.incrementAndGet();
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+
+        try {
+            // 3. 校验: 正好卖出库存数量, 每个用户最多一单, 库存没有变成负数
+            List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+            long distinctUsers = orders.stream().map(VoucherOrder::getUserId).distinct().count();
+            Assertions.assertEquals(stock, success.get());
+            Assertions.assertEquals(stock, orders.size());
+            Assertions.assertEquals(stock, distinctUsers);
+            Assertions.assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+        } finally {
+            // 4. 清理测试数据
+            voucherOrderService.remove(voucherOrderService.query().eq("voucher_id", voucherId).getWrapper());
+            seckillVoucherService.removeById(voucherId);
+            voucherService.removeById(voucherId);
+            stringRedisTemplate.delete(SECKILL_STOCK_KEY + voucherId);
+            stringRedisTemplate.delete(SECKILL_ORDER_KEY + voucherId);
+        }
+    }
+}